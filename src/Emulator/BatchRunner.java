@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many headless emulator instances in parallel.
+ *
+ * Every line of the jobs file holds one job in form of
+ * <code>ROM FRAMES [INPUT_SCRIPT]</code>, <code>#</code> starts a comment.
+ * Relative paths are resolved against the directory of the jobs file.
+ */
+public class BatchRunner {
+
+    // Errors
+    private static final String ERROR_FORMAT = "Wrong format at line ";
+
+    // Jobs to be run
+    private List<Job> jobs = new ArrayList<>();
+    // Number of commands per frame, 0 for default
+    private int cyclesPerFrame;
+    // Dispatch mode of every instance
+    private DispatchMode dispatchMode = DispatchMode.SWITCH;
+    // Seed of every instance, same for all jobs so runs are reproducible
+    private long seed;
+    // Debug port of the first job, following jobs use the following ports, 0 for none
+    private int debugPort;
+    // Indicator that every instance starts paused until its debug client resumes it
+    private boolean debugWait;
+    // Metrics indicator of every instance
+    private boolean metrics;
+
+    /**
+     * Single emulator run.
+     */
+    private static class Job {
+        // Path to the ROM
+        String rom;
+        // Number of frames to run
+        int frames;
+        // Path to the input script, null if none
+        String input;
+        // Index of the job in the jobs file
+        int index;
+    }
+
+    /**
+     * Result of a single emulator run.
+     */
+    private static class Result {
+        // Number of finished frames
+        long frames;
+        // Number of executed commands
+        long cycles;
+        // Hash of the final screen
+        long hash;
+        // Error message, null if the run was successful
+        String error;
+    }
+
+    /**
+     * Reads jobs from the disk.
+     *
+     * @param filePath Location of the jobs file
+     * @throws IOException if the file can not be read
+     */
+    public BatchRunner(String filePath) throws IOException {
+        File base = new File(filePath).getAbsoluteFile().getParentFile();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.contains("#")) {
+                    line = line.substring(0, line.indexOf("#"));
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] args = line.split("\\s+");
+                if (args.length < 2 || args.length > 3) {
+                    throw new IllegalArgumentException(ERROR_FORMAT + number);
+                }
+                Job job = new Job();
+                job.rom = resolve(base, args[0]);
+                try {
+                    job.frames = Integer.parseInt(args[1]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(ERROR_FORMAT + number);
+                }
+                if (job.frames <= 0) {
+                    throw new IllegalArgumentException(ERROR_FORMAT + number);
+                }
+                job.input = args.length == 3 ? resolve(base, args[2]) : null;
+                job.index = jobs.size();
+                jobs.add(job);
+            }
+        }
+    }
+
+    /**
+     * Resolves path relative to the jobs file.
+     */
+    private static String resolve(File base, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? path : new File(base, path).getPath();
+    }
+
+    /**
+     * Sets number of commands executed in one frame by every instance.
+     *
+     * @param cyclesPerFrame Number of commands per frame, 0 for default
+     */
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    /**
+     * Sets the dispatch mode of every instance.
+     *
+     * @param dispatchMode Dispatch mode to be used
+     */
+    public void setDispatchMode(DispatchMode dispatchMode) {
+        this.dispatchMode = dispatchMode;
+    }
+
+    /**
+     * Sets the random seed of every instance.
+     *
+     * @param seed Seed to be used
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Starts a remote debug server for every instance.
+     * Job n of the jobs file listens on port <code>debugPort + n</code>.
+     *
+     * @param debugPort Port of the first job, 0 for no debug servers
+     */
+    public void setDebugPort(int debugPort) {
+        this.debugPort = debugPort;
+    }
+
+    /**
+     * Starts every instance paused, so it runs only once
+     * a client of its debug server resumes it.
+     *
+     * @param debugWait <code>true</code> to wait for the debug clients
+     */
+    public void setDebugWait(boolean debugWait) {
+        this.debugWait = debugWait;
+    }
+
+    /**
+     * Enables metrics of every instance, summed over all jobs.
+     *
+     * @param metrics <code>true</code> to enable metrics
+     */
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs all jobs on a pool sized to the number of cores and prints
+     * the results in order of the jobs file, followed by the throughput.
+     *
+     * @return <code>true</code> if all jobs finished successfully
+     */
+    public boolean run() {
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (final Job job : jobs) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return runJob(job);
+                }
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        long start = System.nanoTime();
+        List<Future<Result>> futures = pool.invokeAll(tasks);
+        long time = System.nanoTime() - start;
+        pool.shutdown();
+
+        long cycles = 0;
+        int failed = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            Result result;
+            try {
+                result = futures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                result = new Result();
+                result.error = e.toString();
+            }
+            if (result.error != null) {
+                failed++;
+                System.out.println(String.format("%s FAILED %s", jobs.get(i).rom, result.error));
+            } else {
+                cycles += result.cycles;
+                System.out.println(String.format("%s frames=%d cycles=%d hash=%016x",
+                        jobs.get(i).rom, result.frames, result.cycles, result.hash));
+            }
+        }
+
+        double seconds = time / 1e9;
+        System.out.println(String.format("Jobs: %d Failed: %d Cycles: %d Time: %.3f s Throughput: %.2f MIPS, %.1f jobs/s",
+                jobs.size(), failed, cycles, seconds, cycles / seconds / 1e6, jobs.size() / seconds));
+        if (metrics) {
+            Metrics.getInstance().printReport();
+        }
+        return failed == 0;
+    }
+
+    /**
+     * Runs single job on the current thread.
+     *
+     * @param job Job to be run
+     * @return Result of the run
+     */
+    private Result runJob(Job job) {
+        Result result = new Result();
+        Engine engine = null;
+        DebugServer server = null;
+        try {
+            Emulator.Builder builder = new Emulator.Builder()
+                    .setRom(job.rom)
+                    .setDispatchMode(dispatchMode)
+                    .setSeed(seed)
+                    .setMetrics(metrics);
+            if (cyclesPerFrame > 0) {
+                builder.setCyclesPerFrame(cyclesPerFrame);
+            }
+            engine = builder.buildEngine();
+            if (debugPort > 0) {
+                server = new DebugServer(engine, debugPort + job.index);
+                engine.setPaused(debugWait);
+                server.start();
+            }
+            if (job.input != null) {
+                engine.setInput(InputScript.load(job.input));
+            }
+            engine.runFrames(job.frames);
+
+            result.frames = engine.getFrames();
+            result.cycles = engine.getCycles();
+            result.hash = engine.getScreen().hash();
+        } catch (IOException | RuntimeException e) {
+            result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            if (engine != null) {
+                engine.detachMetrics();
+            }
+            if (server != null) {
+                server.awaitClients();
+                server.close();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the beeper on the sound device.
+ *
+ * A dedicated thread keeps a small line buffer filled with short chunks of
+ * the tone or silence, so a change of the sound timer is heard within
+ * the buffered time, about 10 ms. The emulation thread only flips a flag.
+ */
+public class Beeper implements IAudioSink, Runnable {
+
+    // Size of the line buffer in samples, 10 ms
+    private static final int BUFFER_SIZE = SquareWave.SAMPLE_RATE / 100;
+    // Size of one written chunk in samples, 2 ms
+    private static final int CHUNK_SIZE = SquareWave.SAMPLE_RATE / 500;
+
+    // Tone indicator, set by the emulation thread
+    private volatile boolean on;
+    // Beeper alive indicator
+    private volatile boolean alive;
+    // Thread filling the line
+    private Thread thread;
+
+    /**
+     * Starts the audio thread. The sound device is opened on that thread,
+     * so starting never blocks the caller.
+     */
+    public void start() {
+        alive = true;
+        thread = new Thread(this, "Audio");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void frame(boolean on) {
+        this.on = on;
+    }
+
+    @Override
+    public void close() {
+        alive = false;
+    }
+
+    /**
+     * Writes the tone to the line until the beeper is closed.
+     */
+    public void run() {
+        AudioFormat format = new AudioFormat(SquareWave.SAMPLE_RATE, 8, 1, true, false);
+        SourceDataLine line;
+        try {
+            line = AudioSystem.getSourceDataLine(format);
+            line.open(format, BUFFER_SIZE);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.out.println("WARNING: Audio unavailable, continuing with no sound!");
+            return;
+        }
+        line.start();
+
+        SquareWave wave = new SquareWave();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (alive) {
+            wave.fill(chunk, chunk.length, on);
+            line.write(chunk, 0, chunk.length);
+        }
+        line.stop();
+        line.close();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures instruction throughput of the available dispatch modes.
+ */
+public class Benchmark {
+
+    // Default number of instructions measured per dispatch mode
+    public static final long DEFAULT_INSTRUCTIONS = 50000000L;
+    // Number of instructions executed before measuring
+    private static final long WARMUP_INSTRUCTIONS = 10000000L;
+    // Location of ROM
+    private static final int PC_START = 0x200;
+
+    // Program used when no ROM is given, arithmetic loop with skips
+    private static final int[] PROGRAM = {
+            0x6000, // LD   V0, 0x00
+            0x6101, // LD   V1, 0x01
+            0xA300, // LD   I, 0x300
+            0x7001, // ADD  V0, 0x01
+            0x8014, // ADD  V0, V1
+            0x8203, // XOR  V2, V0
+            0x8326, // SHR  V3
+            0x3000, // SE   V0, 0x00
+            0x7301, // ADD  V3, 0x01
+            0x8411, // OR   V4, V1
+            0x5010, // SE   V0, V1
+            0x8512, // AND  V5, V1
+            0x8615, // SUB  V6, V1
+            0x1206  // JP   0x206
+    };
+
+    // Path to the ROM, null for built in program
+    private String rom;
+    // Number of instructions measured per dispatch mode
+    private long instructions;
+    // Only dispatch mode to be measured, null for all
+    private DispatchMode mode;
+    // Random seed of every CPU, so compared runs draw the same numbers
+    private long seed;
+
+    /**
+     * Default constructor for the class.
+     *
+     * @param rom Path to the ROM on disk, null for built in program
+     * @param instructions Number of instructions measured per dispatch mode
+     */
+    public Benchmark(String rom, long instructions) {
+        this.rom = rom;
+        this.instructions = instructions;
+    }
+
+    /**
+     * Restricts the benchmark to single dispatch mode, so it
+     * can be measured without profile of other modes in the JVM.
+     *
+     * @param mode Dispatch mode to be measured, null for all
+     */
+    public void setDispatchMode(DispatchMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the random seed of every CPU.
+     *
+     * @param seed Seed to be used
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Runs the benchmark for every dispatch mode and prints the results.
+     */
+    public void run() {
+        DispatchMode[] modes = mode == null ? DispatchMode.values() : new DispatchMode[]{mode};
+        for (DispatchMode mode : modes) {
+            double mips = measure(mode);
+            System.out.println(String.format("%-12s %10.2f MIPS", mode, mips));
+        }
+    }
+
+    /**
+     * Runs every dispatch mode side by side with the switch interpreter
+     * and prints if their states match after given number of instructions.
+     *
+     * @return <code>true</code> if all dispatch modes match the switch interpreter
+     */
+    public boolean verify() {
+        boolean matching = true;
+        DispatchMode[] modes = mode == null ? DispatchMode.values() : new DispatchMode[]{mode};
+        for (DispatchMode mode : modes) {
+            Cpu cpu = createCpu();
+            cpu.setDispatchMode(mode);
+            long executed = 0;
+            while (executed < instructions) {
+                executed += cpu.executeCommands(Integer.MAX_VALUE);
+            }
+
+            Cpu reference = createCpu();
+            reference.setDispatchMode(DispatchMode.SWITCH);
+            for (long i = 0; i < executed; i++) {
+                reference.executeNextCommand();
+            }
+
+            boolean same = getState(cpu).equals(getState(reference));
+            System.out.println(String.format("%-12s %s after %d instructions",
+                    mode, same ? "matches SWITCH" : "DIFFERS from SWITCH", executed));
+            matching &= same;
+        }
+        return matching;
+    }
+
+    /**
+     * Describes registers and timers of the CPU, content of its memory and the screen.
+     *
+     * @param cpu CPU to be described
+     * @return Description of the state
+     */
+    private String getState(Cpu cpu) {
+        StringBuilder state = new StringBuilder();
+        state.append("PC=").append(cpu.getProgramCounter());
+        state.append(" I=").append(cpu.getIndexRegister());
+        state.append(" SP=").append(cpu.getStackPointer());
+        state.append(" DT=").append(cpu.getDelayTimer());
+        state.append(" ST=").append(cpu.getSoundTimer());
+        for (int i = 0; i < 16; i++) {
+            state.append(" V").append(i).append('=').append(cpu.getRegister(i));
+        }
+        Memory memory = cpu.getMemory();
+        for (int i = 0; i < Memory.MEMORY_SIZE; i++) {
+            state.append(' ').append(memory.getByte(i));
+        }
+        Screen screen = cpu.getScreen();
+        ByteBuffer pixels = ByteBuffer.allocate(screen.getStateSize());
+        screen.saveState(pixels);
+        state.append(" Screen=");
+        for (byte b : pixels.array()) {
+            state.append(String.format("%02x", b));
+        }
+        return state.toString();
+    }
+
+    /**
+     * Measures the throughput of one dispatch mode.
+     *
+     * @param mode Dispatch mode to be measured
+     * @return Millions of instructions executed per second
+     */
+    private double measure(DispatchMode mode) {
+        Cpu cpu = createCpu();
+        cpu.setDispatchMode(mode);
+
+        long executed = 0;
+        while (executed < WARMUP_INSTRUCTIONS) {
+            executed += cpu.executeCommands(Integer.MAX_VALUE);
+        }
+
+        executed = 0;
+        long start = System.nanoTime();
+        while (executed < instructions) {
+            executed += cpu.executeCommands(Integer.MAX_VALUE);
+        }
+        long time = System.nanoTime() - start;
+
+        return executed * 1000.0 / time;
+    }
+
+    /**
+     * Creates CPU with the program loaded into memory.
+     *
+     * @return New CPU ready for execution
+     */
+    private Cpu createCpu() {
+        Memory memory = new Memory();
+        if (rom != null) {
+            if (!memory.loadRom(rom)) {
+                throw new IllegalArgumentException("Error loading ROM " + rom);
+            }
+        } else {
+            for (int i = 0; i < PROGRAM.length; i++) {
+                memory.setByte(PC_START + i * 2, (short) (PROGRAM[i] >> 8));
+                memory.setByte(PC_START + i * 2 + 1, (short) (PROGRAM[i] & 0xFF));
+            }
+        }
+        Screen screen = new Screen(Screen.DEFAULT_SCALE, new ScreenType(0));
+        Cpu cpu = new Cpu(memory, screen, new Keyboard());
+        cpu.setRandom(new XorShiftRandom(seed));
+        return cpu;
+    }
+}
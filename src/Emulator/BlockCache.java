@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+/**
+ * Caches straight-line runs of decoded instructions keyed by their start address.
+ *
+ * A block ends with the first instruction that changes the program counter
+ * or writes to the memory, so writes can only happen at the end of a block.
+ * Every write to the memory drops the blocks covering the written address.
+ */
+class BlockCache implements IMemoryListener {
+
+    // Maximum number of instructions in a block
+    static final int MAX_BLOCK_LENGTH = 32;
+    // Maximum number of bytes covered by a block
+    private static final int MAX_BLOCK_SIZE = MAX_BLOCK_LENGTH * 2;
+
+    // Memory instructions are read from
+    private Memory memory;
+    // Cached blocks indexed by start address
+    private Block[] blocks = new Block[Memory.MEMORY_SIZE];
+    // Number of cached blocks covering each address
+    private int[] coverage = new int[Memory.MEMORY_SIZE];
+
+    /**
+     * Straight-line run of decoded instructions.
+     */
+    static class Block {
+        // Address of the first instruction
+        final int start;
+        // Address after the last instruction
+        final int end;
+        // Operation codes of the instructions
+        final int[] opcodes;
+        // Opcode table entries of the instructions
+        final int[] entries;
+        // Number of executions, used to find hot blocks
+        int executions;
+        // Block translated by the recompiler, null if not compiled
+        CompiledBlock compiled;
+
+        Block(int start, int[] opcodes, int[] entries) {
+            this.start = start;
+            this.end = start + opcodes.length * 2;
+            this.opcodes = opcodes;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Default constructor for the class.
+     *
+     * @param memory The instance of memory instructions are read from
+     */
+    BlockCache(Memory memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Gets the block starting at given address, decoding it if it is not cached.
+     *
+     * @param pc Address of the first instruction
+     * @return Block starting at given address
+     */
+    Block getBlock(int pc) {
+        Block block = blocks[pc];
+        if (block == null) {
+            block = decode(pc);
+            blocks[pc] = block;
+            for (int i = block.start; i < block.end; i++) {
+                coverage[i]++;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Decodes instructions starting at given address until the end of the block.
+     *
+     * @param pc Address of the first instruction
+     * @return Decoded block
+     */
+    private Block decode(int pc) {
+        int[] opcodes = new int[MAX_BLOCK_LENGTH];
+        int[] entries = new int[MAX_BLOCK_LENGTH];
+        int length = 0;
+        int location = pc;
+
+        while (length < MAX_BLOCK_LENGTH) {
+            int opcode = (memory.getByte(location) << 8) | memory.getByte(location + 1);
+            opcodes[length] = opcode;
+            entries[length] = OpcodeTable.ENTRIES[opcode];
+            length++;
+            location += 2;
+            if (endsBlock(entries[length - 1]) || location + 1 >= Memory.MEMORY_SIZE) {
+                break;
+            }
+        }
+
+        int[] blockOpcodes = new int[length];
+        int[] blockEntries = new int[length];
+        System.arraycopy(opcodes, 0, blockOpcodes, 0, length);
+        System.arraycopy(entries, 0, blockEntries, 0, length);
+        return new Block(pc, blockOpcodes, blockEntries);
+    }
+
+    /**
+     * Checks if the instruction has to be the last one in the block.
+     *
+     * @param entry Opcode table entry of the instruction
+     * @return <code>true</code> if the instruction changes program counter or writes to memory
+     */
+    static boolean endsBlock(int entry) {
+        switch (OpcodeTable.handler(entry)) {
+            case OpcodeTable.INVALID:
+            case OpcodeTable.RET:
+            case OpcodeTable.JP:
+            case OpcodeTable.CALL:
+            case OpcodeTable.SE_VAL:
+            case OpcodeTable.SNE_VAL:
+            case OpcodeTable.SE_REG:
+            case OpcodeTable.SNE_REG:
+            case OpcodeTable.JP_V0:
+            case OpcodeTable.SKP:
+            case OpcodeTable.SKNP:
+            case OpcodeTable.LD_KEY:
+            case OpcodeTable.LD_B:
+            case OpcodeTable.STORE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Drops the block starting at given address.
+     *
+     * @param start Address of the first instruction of the block
+     */
+    private void remove(int start) {
+        Block block = blocks[start];
+        blocks[start] = null;
+        for (int i = block.start; i < block.end; i++) {
+            coverage[i]--;
+        }
+    }
+
+    /**
+     * Drops all cached blocks.
+     */
+    void clear() {
+        for (int i = 0; i < Memory.MEMORY_SIZE; i++) {
+            blocks[i] = null;
+            coverage[i] = 0;
+        }
+    }
+
+    @Override
+    public void memoryWritten(int location) {
+        if (coverage[location] == 0) {
+            return;
+        }
+        for (int start = Math.max(0, location - MAX_BLOCK_SIZE + 1); start <= location; start++) {
+            Block block = blocks[start];
+            if (block != null && block.end > location) {
+                remove(start);
+            }
+        }
+    }
+
+    @Override
+    public void memoryCleared() {
+        clear();
+    }
+}
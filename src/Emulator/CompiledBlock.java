@@ -0,0 +1,15 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+/**
+ * Block of CHIP-8 instructions translated to JVM bytecode.
+ * Implemented by the classes generated by the recompiler.
+ */
+public interface CompiledBlock {
+
+    void execute(Cpu cpu);
+}
@@ -5,44 +5,32 @@
 */
 package Emulator;
 
-import javax.sound.midi.MidiChannel;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.MidiUnavailableException;
-import javax.sound.midi.Synthesizer;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
 
 /**
  * Emulates CHIP-8 CPU.
  *
  * Created by random on 15.08.2016.
  */
-public class Cpu extends Thread implements ICpu {
+public class Cpu implements ICpu {
 
     // Number of 8-bit registers
     private static final int NUM_REGISTERS = 16;
-    // Delay time
-    private static final int KEY_DELAY = 300;
-    // Delay clock
-    private static final int TIMER_DELAY = 5;
+    // Size of the CPU state in the snapshot
+    static final int STATE_SIZE = NUM_REGISTERS * 2 + 4 * 3 + 2 * 2 + 1 + 8;
     // Location of ROM
     private static final int PC_START = 0x200;
     // Location of stack
     private static final int STACK_START = 0x52;
-    // Default CPU cycle time
-    protected static final int DEFAULT_CYCLE_TIME = 1;
 
     // Random number generator
-    private Random random;
+    private IRandom random;
     // Program memory
     private Memory memory;
     // Emulated screen
     private Screen screen;
     // Emulated keyboard
     private Keyboard keyboard;
-    // Emulated Midi device
-    private MidiChannel midiChannel;
 
     // Registers
     private short[] regV = new short[NUM_REGISTERS];
@@ -56,17 +44,28 @@ public class Cpu extends Thread implements ICpu {
     // Program counter
     private int pc = PC_START;
 
-    // CPU alive indicator
-    private boolean cpuAlive;
+    // Instructions are dispatched through predecoded opcode table
+    private boolean predecoded;
 
-    // CPU paused indicator
-    private boolean cpuPaused;
+    // Cache of decoded blocks, null if block cache is disabled
+    private BlockCache blockCache;
 
-    // CPU cycle time
-    private int cpuCycleTime;
+    // Translator of hot blocks, null if recompiler is disabled
+    private Recompiler recompiler;
 
-    // Operation for Debug
-    private String operation;
+    // Instruction tracer, null if tracing is disabled
+    private Tracer tracer;
+    // Writer of the full execution trace, null if disabled
+    private TraceWriter traceWriter;
+    // Profiler of executed instructions and subroutines, null if disabled
+    private Profiler profiler;
+    // Metrics counters of the engine, null if metrics are disabled
+    private Metrics.Counters counters;
+
+    // Indicator that the last command waits for a key
+    private boolean waitingForKey;
+    // Flight recorder event of the current key wait, null if not recorded
+    private Object keyWaitEvent;
 
     /**
      * Default constructor for the class.
@@ -76,31 +75,11 @@ public class Cpu extends Thread implements ICpu {
      * @param keyboard The instance of keyboard to be used
      */
     public Cpu(Memory memory, Screen screen, Keyboard keyboard) {
-        this.random = new Random();
+        this.random = new XorShiftRandom(System.nanoTime());
         this.memory = memory;
         this.screen = screen;
         this.keyboard = keyboard;
 
-        Timer timer = new Timer("Timer");
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                decrementTimers();
-            }
-        }, TIMER_DELAY, TIMER_DELAY);
-
-        try {
-            Synthesizer synthesizer = MidiSystem.getSynthesizer();
-            synthesizer.open();
-            midiChannel = synthesizer.getChannels()[0];
-        } catch (MidiUnavailableException e) {
-            System.out.println("WARNING: Midi unavailable, continuing with no sound!");
-        }
-
-        cpuPaused = false;
-        cpuAlive = true;
-        cpuCycleTime = DEFAULT_CYCLE_TIME;
-
         reset();
 
     }
@@ -120,37 +99,230 @@ public class Cpu extends Thread implements ICpu {
         }
     }
 
+    /**
+     * Writes registers, timers and state of random number
+     * generator to the snapshot.
+     *
+     * @param buffer Buffer the snapshot is written to
+     */
+    void saveState(ByteBuffer buffer) {
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            buffer.putShort(regV[i]);
+        }
+        buffer.putInt(regI);
+        buffer.putInt(pc);
+        buffer.putInt(regStack);
+        buffer.putShort(timerDelay);
+        buffer.putShort(timerSound);
+        if (random instanceof XorShiftRandom) {
+            buffer.put((byte) 1);
+            buffer.putLong(((XorShiftRandom) random).getState());
+        } else {
+            buffer.put((byte) 0);
+            buffer.putLong(0);
+        }
+    }
+
+    /**
+     * Restores registers, timers and state of random number
+     * generator from the snapshot.
+     *
+     * @param buffer Buffer the snapshot is read from
+     */
+    void loadState(ByteBuffer buffer) {
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            regV[i] = buffer.getShort();
+        }
+        regI = buffer.getInt();
+        pc = buffer.getInt();
+        regStack = buffer.getInt();
+        timerDelay = buffer.getShort();
+        timerSound = buffer.getShort();
+        boolean hasRandomState = buffer.get() != 0;
+        long randomState = buffer.getLong();
+        if (hasRandomState && random instanceof XorShiftRandom) {
+            ((XorShiftRandom) random).setState(randomState);
+        }
+        cancelKeyWait();
+    }
+
+    /**
+     * Forgets the pending key wait, after the program counter was changed
+     * from outside. If the program counter still points at FX0A,
+     * the wait starts again when it is executed.
+     */
+    private void cancelKeyWait() {
+        waitingForKey = false;
+        keyWaitEvent = null;
+    }
+
     /**
      * Decrements delay and sound timers.
+     * Called once per 60 Hz frame of emulated time.
      */
-    private void decrementTimers() {
+    void decrementTimers() {
         if (timerSound > 0) {
             timerSound--;
-            midiChannel.noteOn(60, 50);
         }
         if (timerDelay > 0) {
             timerDelay--;
         }
-        if (timerSound == 0 && midiChannel != null) {
-            midiChannel.noteOff(60);
+    }
+
+    /**
+     * @return <code>true</code> if the beeper sounds, while sound timer is active
+     */
+    public boolean isSoundOn() {
+        return timerSound > 0;
+    }
+
+    /**
+     * Sets the source of random numbers.
+     *
+     * @param random Random number generator to be used
+     */
+    public void setRandom(IRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * @return <code>true</code> if program counter points to a command
+     *         waiting for a key that was not pressed yet
+     */
+    public boolean isWaitingForKey() {
+        return waitingForKey;
+    }
+
+    /**
+     * Moves the program counter from outside of the program,
+     * cancelling the pending key wait.
+     *
+     * @param location New value of program counter
+     */
+    public void setProgramCounter(int location) {
+        pc = location & 0x0FFF;
+        cancelKeyWait();
+    }
+
+    /**
+     * Sets the way instructions are dispatched.
+     *
+     * @param mode New dispatch mode
+     */
+    public void setDispatchMode(DispatchMode mode) {
+        predecoded = mode != DispatchMode.SWITCH;
+        if (mode == DispatchMode.BLOCK_CACHE || mode == DispatchMode.RECOMPILER) {
+            if (blockCache == null) {
+                blockCache = new BlockCache(memory);
+                memory.setListener(blockCache);
+            }
+        } else if (blockCache != null) {
+            memory.setListener(null);
+            blockCache = null;
+        }
+        if (mode == DispatchMode.RECOMPILER) {
+            if (recompiler == null) {
+                recompiler = new Recompiler();
+            }
+        } else {
+            recompiler = null;
+            if (blockCache != null) {
+                blockCache.clear();
+            }
         }
     }
 
     /**
-     * Sets the CPU to paused/not paused mode
+     * @return Current value of program counter
+     */
+    public int getProgramCounter() {
+        return pc;
+    }
+
+    /**
+     * @return Current value of index register
+     */
+    public int getIndexRegister() {
+        return regI;
+    }
+
+    /**
+     * @param reg Number of register
+     * @return Current value of the register
+     */
+    public int getRegister(int reg) {
+        return regV[reg];
+    }
+
+    /**
+     * @return Current location of the top of the stack
+     */
+    public int getStackPointer() {
+        return regStack;
+    }
+
+    /**
+     * @return Current value of delay timer
+     */
+    public int getDelayTimer() {
+        return timerDelay;
+    }
+
+    /**
+     * @return Current value of sound timer
+     */
+    public int getSoundTimer() {
+        return timerSound;
+    }
+
+    /**
+     * @return Memory used by the CPU
+     */
+    Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return Screen used by the CPU
+     */
+    Screen getScreen() {
+        return screen;
+    }
+
+    /**
+     * Sets the tracer executed instructions are recorded to.
+     *
+     * @param tracer Tracer to be used, <code>null</code> disables tracing
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Sets the writer every executed instruction is appended to.
      *
-     * @param paused <code>true</code> if CPU is paused
+     * @param traceWriter Writer to be used, <code>null</code> disables the trace
      */
-    public void setCpuPaused(boolean paused) {
-        cpuPaused = paused;
+    void setTraceWriter(TraceWriter traceWriter) {
+        this.traceWriter = traceWriter;
     }
 
     /**
-     * Sets CPU cycle time to the new value
-     * @param cycleTime New CPU cycle time
+     * Sets the profiler every executed instruction, call and return is counted by.
+     *
+     * @param profiler Profiler to be used, <code>null</code> disables profiling
+     */
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Sets the counters executed instructions and sprite draws are counted in.
+     *
+     * @param counters Counters to be used, <code>null</code> disables metrics
      */
-    public void setCpuCycleTime(int cycleTime) {
-        cpuCycleTime = cycleTime;
+    void setCounters(Metrics.Counters counters) {
+        this.counters = counters;
     }
 
     /**
@@ -163,8 +335,211 @@ public class Cpu extends Thread implements ICpu {
         opcode = (opcode & 0xFF) << 8;
         opcode += memory.getByte(pc + 1);
         opcode = (opcode & 0xFFFF);
+        int address = pc;
+        if (tracer != null) {
+            tracer.record(address, opcode);
+        }
+        if (profiler != null) {
+            profiler.record(address);
+        }
+        if (counters != null) {
+            counters.instruction(opcode);
+        }
         pc += 2;
-        execute(opcode);
+        if (predecoded) {
+            executeDecoded(opcode);
+        } else {
+            execute(opcode);
+        }
+        if (traceWriter != null) {
+            traceWriter.record(address, opcode, this);
+        }
+    }
+
+    /**
+     * Executes the next run of commands. In block cache mode
+     * the whole block starting at program counter is executed
+     * if it fits in the limit, otherwise only the next command.
+     *
+     * @param limit Maximum number of commands to be executed
+     * @return Number of executed commands
+     */
+    public int executeCommands(int limit) {
+        if (blockCache == null) {
+            executeNextCommand();
+            return 1;
+        }
+
+        BlockCache.Block block = blockCache.getBlock(pc);
+        if (block.entries.length > limit) {
+            executeNextCommand();
+            return 1;
+        }
+        if (recompiler != null && tracer == null && traceWriter == null && profiler == null) {
+            CompiledBlock compiled = block.compiled;
+            if (compiled != null) {
+                compiled.execute(this);
+                if (counters != null) {
+                    for (int opcode : block.opcodes) {
+                        counters.instruction(opcode);
+                    }
+                }
+                return block.entries.length;
+            }
+            if (++block.executions == Recompiler.HOT_THRESHOLD && Recompiler.canCompile(block)) {
+                block.compiled = recompiler.compile(block);
+            }
+        }
+
+        int[] opcodes = block.opcodes;
+        int[] entries = block.entries;
+        Tracer tracer = this.tracer;
+        TraceWriter traceWriter = this.traceWriter;
+        Profiler profiler = this.profiler;
+        Metrics.Counters counters = this.counters;
+        for (int i = 0; i < entries.length; i++) {
+            int address = pc;
+            if (tracer != null) {
+                tracer.record(address, opcodes[i]);
+            }
+            if (profiler != null) {
+                profiler.record(address);
+            }
+            if (counters != null) {
+                counters.instruction(opcodes[i]);
+            }
+            pc += 2;
+            executeEntry(entries[i], opcodes[i]);
+            if (traceWriter != null) {
+                traceWriter.record(address, opcodes[i], this);
+            }
+        }
+        return entries.length;
+    }
+
+    /**
+     * Executes given opcode using the predecoded opcode table.
+     *
+     * @param opcode Operation code to be executed
+     */
+    public void executeDecoded(int opcode) {
+        executeEntry(OpcodeTable.ENTRIES[opcode], opcode);
+    }
+
+    /**
+     * Executes decoded opcode.
+     *
+     * @param entry Opcode table entry of the command
+     * @param opcode Operation code of the command
+     */
+    private void executeEntry(int entry, int opcode) {
+        switch (OpcodeTable.handler(entry)) {
+            case OpcodeTable.CLS:
+                clearScreen();
+                break;
+            case OpcodeTable.RET:
+                returnFromSubrutine();
+                break;
+            case OpcodeTable.JP:
+                jumpToAddress(OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.CALL:
+                callSubroutine(OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.SE_VAL:
+                skipIfRegisterEqualValue(OpcodeTable.x(entry), OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.SNE_VAL:
+                skipIfRegisterNotEqualValue(OpcodeTable.x(entry), OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.SE_REG:
+                skipIfRegisterEqualRegister(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.LD_VAL:
+                setRegisterToValue(OpcodeTable.x(entry), OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.ADD_VAL:
+                addValueToRegister(OpcodeTable.x(entry), OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.LD_REG:
+                registerMove(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.OR:
+                registerOr(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.AND:
+                registerAnd(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.XOR:
+                registerXor(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.ADD_REG:
+                registerAdd(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.SUB:
+                registerSubN(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.SHR:
+                registerShiftRight(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.SUBN:
+                registerSub(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.SHL:
+                registerShiftLeft(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.SNE_REG:
+                skipIfRegisterNotEqualRegister(OpcodeTable.x(entry), OpcodeTable.y(entry));
+                break;
+            case OpcodeTable.LD_I:
+                setIToAddress(OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.JP_V0:
+                jumpToAddressPlusV0(OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.RND:
+                setRegisterToRandomValue(OpcodeTable.x(entry), OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.DRW:
+                drawSprite(OpcodeTable.x(entry), OpcodeTable.y(entry), OpcodeTable.operand(entry));
+                break;
+            case OpcodeTable.SKP:
+                skipIfKeyPressed(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.SKNP:
+                skipIfKeyNotPressed(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.LD_DT:
+                setRegisterToDelayTimer(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.LD_KEY:
+                waitForKey(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.SET_DT:
+                setDelayTimer(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.SET_ST:
+                setSoundTimer(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.ADD_I:
+                addRegisterToI(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.LD_F:
+                loadIWithSprite(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.LD_B:
+                storeDecimalInMemory(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.STORE:
+                storeRegistersInMemory(OpcodeTable.x(entry));
+                break;
+            case OpcodeTable.READ:
+                storeMemoryToRegisters(OpcodeTable.x(entry));
+                break;
+            default:
+                System.out.println("Unsupported command: " + String.format("0x%08X", opcode) + " Address: " + String.format("0x%08X", pc));
+                throw new IllegalArgumentException("Unsupported command: " + String.format("0x%08X", opcode) + " Address: " + String.format("0x%08X", pc));
+        }
     }
 
     /**
@@ -180,11 +555,9 @@ public class Cpu extends Thread implements ICpu {
                 switch (opcode & 0x00FF) {
                     case 0xE0: // Clears the screen.
                         clearScreen();
-                        operation = "CLS";
                         break;
                     case 0xEE: // Returns from a subroutine.
                         returnFromSubrutine();
-                        operation = "RET";
                         break;
                     default:
                         System.out.println("Unsuported command: " + String.format("0x%08X", opcode) + " Address: " + String.format("0x%08X", pc));
@@ -194,42 +567,35 @@ public class Cpu extends Thread implements ICpu {
             case 0x1: // Jumps to address.
                 location = opcode & 0x0FFF;
                 jumpToAddress(location);
-                operation = "JUMP " + location;
                 break;
             case 0x2: // Calls subroutine.
                 location = opcode & 0x0FFF;
                 callSubroutine(location);
-                operation = "CALL " + location;
                 break;
             case 0x3: // Skips the next instruction if register equals value.
                 reg = (opcode & 0x0F00) >> 8;
                 val = (opcode & 0x00FF);
                 skipIfRegisterEqualValue(reg, val);
-                operation = "SE V" + reg + ", " + val;
                 break;
             case 0x4: // Skips the next instruction if register doesn't equal value.
                 reg = (opcode & 0x0F00) >> 8;
                 val = (opcode & 0x00FF);
                 skipIfRegisterNotEqualValue(reg, val);
-                operation = "SNE V" + reg + ", " + val;
                 break;
             case 0x5: // Skips the next instruction if register equals register.
                 reg1 = (opcode & 0x0F00) >> 8;
                 reg2 = (opcode & 0x00F0) >> 4;
                 skipIfRegisterEqualRegister(reg1, reg2);
-                operation = "SE V" + reg1 + ", V" + reg2;
                 break;
             case 0x6: // Sets register to a value.
                 reg = (opcode & 0x0F00) >> 8;
                 val = (opcode & 0x00FF);
                 setRegisterToValue(reg, val);
-                operation = "LOAD V" + reg + ", " + val;
                 break;
             case 0x7: // Adds value to register.
                 reg = (opcode & 0x0F00) >> 8;
                 val = (opcode & 0x00FF);
                 addValueToRegister(reg, val);
-                operation = "ADD V" + reg + ", " + val;
                 break;
             case 0x8:
                 reg1 = (opcode & 0x0F00) >> 8;
@@ -237,39 +603,30 @@ public class Cpu extends Thread implements ICpu {
                 switch (opcode & 0x000F) {
                     case 0x0: // Sets reg1 to the value of reg2.
                         registerMove(reg1, reg2);
-                        operation = "MOV V" + reg1 + ", V" + reg2;
                         break;
                     case 0x1: // Sets reg1 to the value of reg1 or reg2.
                         registerOr(reg1, reg2);
-                        operation = "OR V" + reg1 + ", V" + reg2;
                         break;
                     case 0x2: // Sets reg1 to the value of reg1 and reg2.
                         registerAnd(reg1, reg2);
-                        operation = "AND V" + reg1 + ", V" + reg2;
                         break;
                     case 0x3: // Sets reg1 to the value of reg1 xor reg2.
                         registerXor(reg1, reg2);
-                        operation = "XOR V" + reg1 + ", V" + reg2;
                         break;
                     case 0x4: // Adds reg2 to reg1. VF is set to 1 when there's a carry, and to 0 when there isn't.
                         registerAdd(reg1, reg2);
-                        operation = "ADD V" + reg1 + ", V" + reg2;
                         break;
                     case 0x5: // reg2 is subtracted from reg1. VF is set to 0 when there's a borrow, and 1 when there isn't.
                         registerSubN(reg1, reg2);
-                        operation = "SUB1 V" + reg1 + ", V" + reg2;
                         break;
                     case 0x6: // Shifts reg1 right by one. VF is set to the value of the least significant bit of reg1 before the shift.
                         registerShiftRight(reg1);
-                        operation = "SHR V" + reg1;
                         break;
                     case 0x7: // Sets reg1 to reg2 minus reg1. VF is set to 0 when there's a borrow, and 1 when there isn't.
                         registerSub(reg1, reg2);
-                        operation = "SUB2 V" + reg1 + ", V" + reg2;
                         break;
                     case 0xE: // Shifts VX left by one. VF is set to the value of the most significant bit of VX before the shift
                         registerShiftLeft(reg1);
-                        operation = "SHL V" + reg1;
                         break;
                     default:
                         System.out.println("Unsupported command: " + String.format("0x%08X", opcode) + " Address: " + String.format("0x%08X", pc));
@@ -280,42 +637,35 @@ public class Cpu extends Thread implements ICpu {
                 reg1 = (opcode & 0x0F00) >> 8;
                 reg2 = (opcode & 0x00F0) >> 4;
                 skipIfRegisterNotEqualRegister(reg1, reg2);
-                operation = "SKNE V" + reg1 + ", V" + reg2;
                 break;
             case 0xA: // Sets I to the address.
                 location = (opcode & 0x0FFF);
                 setIToAddress(location);
-                operation = "LOAD I, " + location;
                 break;
             case 0xB: // Jumps to the address plus V0.
                 location = (opcode & 0x0FFF);
                 jumpToAddressPlusV0(location);
-                operation = "JUMP V0 + " + location;
                 break;
             case 0xC: // Sets register to the result of a bitwise and operation on a random number and value.
                 reg = (opcode & 0x0F00) >> 8;
                 val = (opcode & 0x00FF);
                 setRegisterToRandomValue(reg, val);
-                operation = "RAND V" + reg;
                 break;
             case 0xD: // Draws a sprite at coordinate (VX, VY) that has a width of 8 pixels and a height of N pixels.
                 reg1 = (opcode & 0x0F00) >> 8;
                 reg2 = (opcode & 0x00F0) >> 4;
                 val = (opcode & 0x000F);
                 drawSprite(reg1, reg2, val);
-                operation = "DRAW V" + reg1 + ", V" + reg2;
                 break;
             case 0xE:
                 switch (opcode & 0x00FF) {
                     case 0x9E: // Skips the next instruction if the key stored in register is pressed.
                         reg = (opcode & 0x0F00) >> 8;
                         skipIfKeyPressed(reg);
-                        operation = "SKPR V" + reg;
                         break;
                     case 0xA1: // Skips the next instruction if the key stored in register isn't pressed.
                         reg = (opcode & 0x0F00) >> 8;
                         skipIfKeyNotPressed(reg);
-                        operation = "SKUP V" + reg;
                         break;
                     default:
                         System.out.println("Unsuported command: " + String.format("0x%08X", opcode) + " Address: " + String.format("0x%08X", pc));
@@ -327,39 +677,30 @@ public class Cpu extends Thread implements ICpu {
                 switch (opcode & 0x00FF) {
                     case 0x07: // Sets register to the value of the delay timer.
                         setRegisterToDelayTimer(reg);
-                        operation = "LOAD V" + reg + ", DELAY";
                         break;
                     case 0x0A: // A key press is awaited, and then stored in register.
                         waitForKey(reg);
-                        operation = "WAIT V" + reg;
                         break;
                     case 0x15: // Sets the delay timer to register value.
                         setDelayTimer(reg);
-                        operation = "LOAD DELAY, V" + reg;
                         break;
                     case 0x18: // Sets the sound timer to register value.
                         setSoundTimer(reg);
-                        operation = "LOAD SOUND, V" + reg;
                         break;
                     case 0x1E: // Adds VX to I. [3]<- Wikipedia
                         addRegisterToI(reg);
-                        operation = "ADD I, V" + reg;
                         break;
                     case 0x29: // Sets I to the location of the sprite for the character in VX. Characters 0-F (in hexadecimal) are represented by a 4x5 font.
                         loadIWithSprite(reg);
-                        operation = "LVS V" + reg;
                         break;
                     case 0x33: // Stores the binary-coded decimal representation of VX, with the most significant of three digits at the address in I, the middle digit at I plus 1, and the least significant digit at I plus 2.
                         storeDecimalInMemory(reg);
-                        operation = "BCD V" + reg;
                         break;
                     case 0x55: // Stores V0 to VX (including VX) in memory starting at address I.[4]
                         storeRegistersInMemory(reg);
-                        operation = "STOR " + reg;
                         break;
                     case 0x65: // Fills V0 to VX (including VX) with values from memory starting at address I. [4]
                         storeMemoryToRegisters(reg);
-                        operation = "READ " + reg;
                         break;
                     default:
                         System.out.println("Unsuported command: " + String.format("0x%08X", opcode) + " Address: " + String.format("0x%08X", pc));
@@ -383,6 +724,9 @@ public class Cpu extends Thread implements ICpu {
      * Returns from subroutine.
      */
     public void returnFromSubrutine() {
+        if (profiler != null) {
+            profiler.ret();
+        }
         regStack--;
         pc = memory.getByte(regStack) << 8;
         regStack--;
@@ -409,6 +753,9 @@ public class Cpu extends Thread implements ICpu {
         memory.setByte(regStack, (short) ((pc & 0xFF00) >> 8));
         regStack++;
         pc = location;
+        if (profiler != null) {
+            profiler.call(location);
+        }
     }
 
     /**
@@ -628,7 +975,7 @@ public class Cpu extends Thread implements ICpu {
      * @param val Given value
      */
     public void setRegisterToRandomValue(int reg, int val) {
-        regV[reg] = (short) (val & random.nextInt(0xFF));
+        regV[reg] = (short) (val & random.nextByte());
     }
 
     /**
@@ -644,33 +991,22 @@ public class Cpu extends Thread implements ICpu {
      * @param val Value of height
      */
     public void drawSprite(int reg1, int reg2, int val) {
-        regV[0xF] = 0;
+        int width = screen.getWidth();
+        int height = screen.getHeight();
+        int x = regV[reg1] % width;
+        int y = regV[reg2];
+        boolean collision = false;
 
         for (int j = 0; j < val; j++) {
+            collision |= screen.drawSpriteRow(x, (y + j) % height, memory.getByte(regI + j));
+        }
 
-            short colorByte = memory.getByte(regI+ j);
-            int y = regV[reg2] + j;
-            y = y % screen.getHeight();
-
-            int mask = 0x80;
-
-            for (int i = 0; i < 8; i++) {
-                int x = regV[reg1] + i;
-                x = x % screen.getWidth();
-
-                boolean turnOn = (colorByte & mask) > 0;
-                boolean currentOn = screen.isPixelOn(x, y);
-
-                if (turnOn && currentOn) {
-                    regV[0xF] |= 1;
-                    turnOn = false;
-                } else if (!turnOn && currentOn) {
-                    turnOn = true;
-                }
-
-                screen.markPixel(x, y, turnOn);
-                mask = mask >> 1;
-            }
+        regV[0xF] = (short) (collision ? 1 : 0);
+        if (counters != null) {
+            counters.sprite(collision);
+        }
+        if (FlightEvents.isActive()) {
+            FlightEvents.SpriteDrawEvent.emit(x, y, val, collision);
         }
     }
 
@@ -680,7 +1016,7 @@ public class Cpu extends Thread implements ICpu {
      * @param reg Number of register to check for key
      */
     public void skipIfKeyPressed(int reg) {
-        if (keyboard.getKeyPressed() == regV[reg]) {
+        if (keyboard.isKeyPressed(regV[reg])) {
             pc += 2;
         }
     }
@@ -691,7 +1027,7 @@ public class Cpu extends Thread implements ICpu {
      * @param reg Number of register to check for key
      */
     public void skipIfKeyNotPressed(int reg) {
-        if (keyboard.getKeyPressed() != regV[reg]) {
+        if (!keyboard.isKeyPressed(regV[reg])) {
             pc += 2;
         }
     }
@@ -708,21 +1044,27 @@ public class Cpu extends Thread implements ICpu {
     /**
      * Waits for key to be pressed and stops execution of program.
      * Pressed key is stored in register.
+     * The thread is never blocked, if no key is pressed the command is
+     * repeated and the caller can wait for the keyboard until it is.
      *
      * @param reg Number of register to put key in
      */
     public void waitForKey(int reg) {
         int key = keyboard.getKeyPressed();
-        while (key == -1) {
-            try {
-                Thread.sleep(KEY_DELAY);
-            } catch (InterruptedException e) {
-                System.out.println("Error while waiting for key");
+        waitingForKey = key == -1;
+        if (waitingForKey) {
+            if (FlightEvents.isActive() && keyWaitEvent == null) {
+                keyWaitEvent = FlightEvents.KeyWaitEvent.start();
             }
-            key = keyboard.getKeyPressed();
+            pc -= 2;
+            return;
         }
 
         regV[reg] = (short) key;
+        if (keyWaitEvent != null) {
+            FlightEvents.KeyWaitEvent.end(keyWaitEvent, key);
+            keyWaitEvent = null;
+        }
     }
 
     /**
@@ -805,23 +1147,13 @@ public class Cpu extends Thread implements ICpu {
     }
 
     /**
-     * Runs the code in loop.
+     * Prints instructions recorded by the tracer, if tracing is enabled.
      */
-    public void run() {
-        while(cpuAlive) {
-            if (!cpuPaused) {
-                executeNextCommand();
-                try {
-                    sleep(cpuCycleTime);
-                } catch (InterruptedException e) {
-                    System.out.println("CPU sleep interrupted");
-                }
-            } else {
-                try {
-                    sleep(KEY_DELAY);
-                } catch (InterruptedException e) {
-                    System.out.println("CPU sleep interrupted");
-                }
+    public void printTrace() {
+        if (tracer != null) {
+            System.out.println("Last executed instructions:");
+            for (String line : tracer.getTrace()) {
+                System.out.println(line);
             }
         }
     }
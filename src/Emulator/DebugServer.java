@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Remote debugger of the engine, listening on a loopback TCP socket.
+ *
+ * Every request is a batch of commands: <code>int length</code> of the rest,
+ * <code>short count</code> and the commands, each an opcode byte followed by
+ * its arguments. The whole batch is executed between two frames, with the
+ * engine held still, and answered with <code>int length</code>,
+ * <code>short count</code> and one response per command: a status byte
+ * (0 for success) followed by the results. All numbers are big-endian.
+ * When the last client disconnects, its breakpoints are cleared and the
+ * engine is resumed, so a headless run is never left waiting for nobody.
+ *
+ * <pre>
+ * 0x01 REGISTERS                     V0-VF, I, PC, SP (short each), DT, ST (byte each),
+ *                                    frames, cycles (long each), stopped, paused (byte each)
+ * 0x02 SET_REGISTER  reg, value      reg is byte, 0x0-0xF for V, 0x10 for I, 0x11 for PC
+ * 0x03 READ_MEMORY   address, length bytes of the memory
+ * 0x04 WRITE_MEMORY  address, length, bytes
+ * 0x05 ADD_BREAK     address
+ * 0x06 REMOVE_BREAK  address
+ * 0x07 CLEAR_BREAKS
+ * 0x08 STEP                          executed (byte)
+ * 0x09 STEP_OVER                     finished (byte), 0 also if the subroutine did not return
+ *                                    within 1048576 commands, the engine is left inside it
+ * 0x0A CONTINUE      count (int)     breakpoint hit (byte), count is capped at 1048576 commands,
+ *                                    count 0 resumes the engine instead, which runs
+ *                                    on its own until the next breakpoint
+ * 0x0B RUN_FRAMES    count (int)     breakpoint hit (byte), count is capped at 3600 frames
+ *                                    and the run at 1048576 commands
+ * 0x0C SCREEN                        width, height (short each), rows as longs
+ * 0x0D PAUSE         paused (byte)
+ * 0x0E SNAPSHOT                      length (int) and the snapshot of the whole machine
+ * </pre>
+ * Addresses, lengths and values are shorts unless stated otherwise.
+ * Commands with arguments out of range fail alone, the rest of the batch is executed.
+ */
+public class DebugServer implements Runnable {
+
+    // Commands
+    private static final int REGISTERS = 0x01;
+    private static final int SET_REGISTER = 0x02;
+    private static final int READ_MEMORY = 0x03;
+    private static final int WRITE_MEMORY = 0x04;
+    private static final int ADD_BREAK = 0x05;
+    private static final int REMOVE_BREAK = 0x06;
+    private static final int CLEAR_BREAKS = 0x07;
+    private static final int STEP = 0x08;
+    private static final int STEP_OVER = 0x09;
+    private static final int CONTINUE = 0x0A;
+    private static final int RUN_FRAMES = 0x0B;
+    private static final int SCREEN = 0x0C;
+    private static final int PAUSE = 0x0D;
+    private static final int SNAPSHOT = 0x0E;
+
+    // Response statuses
+    private static final int STATUS_OK = 0;
+    private static final int STATUS_ERROR = 1;
+
+    // Registers addressed by SET_REGISTER besides V0-VF
+    private static final int REGISTER_I = 0x10;
+    private static final int REGISTER_PC = 0x11;
+
+    // Maximum size of a request
+    private static final int MAX_REQUEST = 1 << 16;
+
+    // Debugged engine
+    private Engine engine;
+    // Debugger attached to the engine
+    private Debugger debugger;
+    // Socket accepting clients
+    private ServerSocket serverSocket;
+    // Number of connected clients
+    private int clients;
+
+    /**
+     * Opens the socket and attaches the debugger to the engine.
+     *
+     * @param engine Engine to be debugged
+     * @param port Loopback port to listen on, 0 for any free port
+     * @throws IOException if the socket can not be opened
+     */
+    public DebugServer(Engine engine, int port) throws IOException {
+        this.engine = engine;
+        this.debugger = new Debugger(engine);
+        this.serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return Port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting clients on its own thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "Debug server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops accepting clients.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("Error closing debug server");
+        }
+    }
+
+    /**
+     * Waits until all connected clients disconnect, so they can still
+     * inspect the engine after its run is over.
+     */
+    public synchronized void awaitClients() {
+        while (clients > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                System.out.println("Debug server wait interrupted");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Accepts clients, every one is served on its own thread.
+     */
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                clients++;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "Debug client");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Answers requests of one client until it disconnects.
+     *
+     * @param socket Connection to the client
+     */
+    private void serve(Socket socket) {
+        try (Socket client = socket) {
+            client.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 2 || length > MAX_REQUEST) {
+                    return;
+                }
+                byte[] request = new byte[length];
+                in.readFully(request);
+
+                response.reset();
+                handle(ByteBuffer.wrap(request), new DataOutputStream(response));
+                out.writeInt(response.size());
+                response.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Debug client disconnected: " + e.getMessage());
+        } finally {
+            disconnected();
+        }
+    }
+
+    /**
+     * Releases the engine when the last client disconnects.
+     */
+    private synchronized void disconnected() {
+        if (--clients == 0) {
+            engine.lock();
+            try {
+                debugger.clearBreakpoints();
+                engine.setPaused(false);
+            } finally {
+                engine.unlock();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Executes the batch of commands with the engine held still.
+     *
+     * @param request Batch of commands
+     * @param out Stream the responses are written to
+     * @throws IOException if the responses can not be written
+     */
+    void handle(ByteBuffer request, DataOutputStream out) throws IOException {
+        int count = request.getShort() & 0xFFFF;
+        out.writeShort(count);
+        engine.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                boolean ok;
+                try {
+                    ok = execute(request, new DataOutputStream(result));
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    // The rest of the batch can not be parsed
+                    for (; i < count; i++) {
+                        out.writeByte(STATUS_ERROR);
+                    }
+                    return;
+                }
+                out.writeByte(ok ? STATUS_OK : STATUS_ERROR);
+                result.writeTo(out);
+            }
+        } finally {
+            engine.unlock();
+        }
+    }
+
+    /**
+     * Executes one command.
+     *
+     * @param request Request positioned at the command
+     * @param out Stream the results are written to
+     * @return <code>true</code> if the command is known and its arguments are valid
+     * @throws IOException if the results can not be written
+     */
+    private boolean execute(ByteBuffer request, DataOutputStream out) throws IOException {
+        Cpu cpu = engine.getCpu();
+        Memory memory = engine.getMemory();
+        int command = request.get() & 0xFF;
+        switch (command) {
+            case REGISTERS:
+                for (int reg = 0; reg < 16; reg++) {
+                    out.writeShort(cpu.getRegister(reg));
+                }
+                out.writeShort(cpu.getIndexRegister());
+                out.writeShort(cpu.getProgramCounter());
+                out.writeShort(cpu.getStackPointer());
+                out.writeByte(cpu.getDelayTimer());
+                out.writeByte(cpu.getSoundTimer());
+                out.writeLong(engine.getFrames());
+                out.writeLong(engine.getCycles());
+                out.writeByte(engine.isStopped() ? 1 : 0);
+                out.writeByte(engine.isPaused() ? 1 : 0);
+                return true;
+            case SET_REGISTER: {
+                int reg = request.get() & 0xFF;
+                int value = request.getShort() & 0xFFFF;
+                if (reg < 16) {
+                    cpu.setRegisterToValue(reg, value & 0xFF);
+                } else if (reg == REGISTER_I) {
+                    cpu.setIToAddress(value);
+                } else if (reg == REGISTER_PC) {
+                    cpu.setProgramCounter(value);
+                } else {
+                    return false;
+                }
+                return true;
+            }
+            case READ_MEMORY: {
+                int address = request.getShort() & 0xFFFF;
+                int length = request.getShort() & 0xFFFF;
+                if (address + length > Memory.MEMORY_SIZE) {
+                    return false;
+                }
+                for (int i = 0; i < length; i++) {
+                    out.writeByte(memory.getByte(address + i));
+                }
+                return true;
+            }
+            case WRITE_MEMORY: {
+                int address = request.getShort() & 0xFFFF;
+                int length = request.getShort() & 0xFFFF;
+                if (address + length > Memory.MEMORY_SIZE) {
+                    request.position(request.position() + length);
+                    return false;
+                }
+                for (int i = 0; i < length; i++) {
+                    memory.setByte(address + i, (short) (request.get() & 0xFF));
+                }
+                return true;
+            }
+            case ADD_BREAK:
+                debugger.addBreakpoint(request.getShort() & 0xFFFF);
+                return true;
+            case REMOVE_BREAK:
+                debugger.removeBreakpoint(request.getShort() & 0xFFFF);
+                return true;
+            case CLEAR_BREAKS:
+                debugger.clearBreakpoints();
+                return true;
+            case STEP:
+                out.writeByte(debugger.step() ? 1 : 0);
+                return true;
+            case STEP_OVER:
+                out.writeByte(debugger.stepOver() ? 1 : 0);
+                return true;
+            case CONTINUE: {
+                int count = request.getInt();
+                if (count < 0) {
+                    return false;
+                }
+                if (count == 0) {
+                    engine.resume();
+                    engine.setPaused(false);
+                    out.writeByte(0);
+                } else {
+                    out.writeByte(debugger.run(count) ? 1 : 0);
+                }
+                return true;
+            }
+            case RUN_FRAMES: {
+                int count = request.getInt();
+                if (count < 0) {
+                    return false;
+                }
+                out.writeByte(debugger.runToFrame(engine.getFrames() + count) ? 1 : 0);
+                return true;
+            }
+            case SCREEN: {
+                Screen screen = engine.getScreen();
+                ByteBuffer buffer = ByteBuffer.allocate(screen.getStateSize());
+                screen.saveState(buffer);
+                out.write(buffer.array());
+                return true;
+            }
+            case PAUSE:
+                engine.setPaused(request.get() != 0);
+                return true;
+            case SNAPSHOT: {
+                byte[] snapshot = engine.saveState();
+                out.writeInt(snapshot.length);
+                out.write(snapshot);
+                return true;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+}
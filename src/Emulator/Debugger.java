@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+/**
+ * Breakpoint and single-step debugger of the engine.
+ *
+ * Breakpoints are kept as a bitmap with one bit per memory address.
+ * While no breakpoint is set the engine runs its usual fast path, the only
+ * cost of an attached debugger being one field check per run of commands.
+ * With breakpoints set, commands are executed one by one and the program
+ * counter is checked against the bitmap before each of them.
+ */
+public class Debugger {
+
+    // Number of addresses covered by one word of the bitmap
+    private static final int WORD_BITS = 64;
+    // Maximum number of commands executed by one step over or run, about a minute at default speed
+    static final int COMMAND_LIMIT = 1 << 20;
+    // Maximum number of frames executed by one run, a minute of emulated time
+    static final int FRAME_LIMIT = 60 * Engine.FRAME_RATE;
+
+    // Debugged engine
+    private Engine engine;
+    // Breakpoints, one bit per memory address
+    private long[] breakpoints = new long[Memory.MEMORY_SIZE / WORD_BITS];
+    // Number of set breakpoints
+    private int breakpointCount;
+
+    /**
+     * Attaches the debugger to the engine.
+     *
+     * @param engine Engine to be debugged
+     */
+    public Debugger(Engine engine) {
+        this.engine = engine;
+        engine.setDebugger(this);
+    }
+
+    /**
+     * Detaches the debugger from the engine.
+     */
+    public void detach() {
+        engine.setDebugger(null);
+    }
+
+    /**
+     * @return <code>true</code> if any breakpoint is set
+     */
+    boolean isArmed() {
+        return breakpointCount > 0;
+    }
+
+    /**
+     * @param address Memory address
+     * @return <code>true</code> if breakpoint is set at the address
+     */
+    public boolean isBreakpoint(int address) {
+        address &= Memory.MEMORY_SIZE - 1;
+        return (breakpoints[address >>> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * Sets a breakpoint at the address.
+     *
+     * @param address Memory address
+     */
+    public void addBreakpoint(int address) {
+        if (!isBreakpoint(address)) {
+            address &= Memory.MEMORY_SIZE - 1;
+            breakpoints[address >>> 6] |= 1L << address;
+            breakpointCount++;
+        }
+    }
+
+    /**
+     * Removes the breakpoint at the address.
+     *
+     * @param address Memory address
+     */
+    public void removeBreakpoint(int address) {
+        if (isBreakpoint(address)) {
+            address &= Memory.MEMORY_SIZE - 1;
+            breakpoints[address >>> 6] &= ~(1L << address);
+            breakpointCount--;
+        }
+    }
+
+    /**
+     * Removes all breakpoints.
+     */
+    public void clearBreakpoints() {
+        for (int i = 0; i < breakpoints.length; i++) {
+            breakpoints[i] = 0;
+        }
+        breakpointCount = 0;
+    }
+
+    /**
+     * @return Number of set breakpoints
+     */
+    public int getBreakpointCount() {
+        return breakpointCount;
+    }
+
+    /**
+     * Executes the next command, even if breakpoint is set at it.
+     *
+     * @return <code>true</code> if the command was executed,
+     *         <code>false</code> if the CPU waits for a key
+     */
+    public boolean step() {
+        engine.resume();
+        return engine.step(1) == 1;
+    }
+
+    /**
+     * Executes the next command. If it calls a subroutine, runs until
+     * the subroutine returns, a breakpoint is hit, the CPU waits for a key
+     * or <code>COMMAND_LIMIT</code> commands are executed, so a subroutine
+     * that never returns does not hold the engine forever.
+     *
+     * @return <code>true</code> if the command, including the subroutine, finished
+     */
+    public boolean stepOver() {
+        Cpu cpu = engine.getCpu();
+        Memory memory = engine.getMemory();
+        int pc = cpu.getProgramCounter();
+        int stackPointer = cpu.getStackPointer();
+        boolean call = (memory.getByte(pc) & 0xF0) == 0x20;
+
+        if (!step()) {
+            return false;
+        }
+        if (!call) {
+            return true;
+        }
+        for (int i = 1; i < COMMAND_LIMIT; i++) {
+            if (cpu.getProgramCounter() == pc + 2 && cpu.getStackPointer() == stackPointer) {
+                return true;
+            }
+            if (engine.step(1) == 0) {
+                return false;
+            }
+        }
+        return cpu.getProgramCounter() == pc + 2 && cpu.getStackPointer() == stackPointer;
+    }
+
+    /**
+     * Runs until a breakpoint is hit, the CPU waits for a key or given
+     * number of commands, at most <code>COMMAND_LIMIT</code>, is executed.
+     *
+     * @param n Maximum number of commands to be executed
+     * @return <code>true</code> if a breakpoint was hit
+     */
+    public boolean run(long n) {
+        engine.resume();
+        engine.step(Math.min(n, COMMAND_LIMIT));
+        return engine.isStopped();
+    }
+
+    /**
+     * Runs until given frame starts or a breakpoint is hit, but for at most
+     * <code>FRAME_LIMIT</code> frames and <code>COMMAND_LIMIT</code> commands.
+     *
+     * @param frame Number of the frame to run to
+     * @return <code>true</code> if a breakpoint was hit
+     */
+    public boolean runToFrame(long frame) {
+        engine.resume();
+        engine.runToFrame(Math.min(frame, engine.getFrames() + FRAME_LIMIT), COMMAND_LIMIT);
+        return engine.isStopped();
+    }
+}
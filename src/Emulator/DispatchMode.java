@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+/**
+ * Ways the CPU can dispatch decoded instructions.
+ */
+public enum DispatchMode {
+
+    // Decodes every instruction with nested switch statements
+    SWITCH,
+    // Looks every instruction up in the predecoded opcode table
+    PREDECODED,
+    // Executes cached straight-line blocks of predecoded instructions
+    BLOCK_CACHE,
+    // Executes cached blocks, translating hot ones to JVM bytecode
+    RECOMPILER
+}
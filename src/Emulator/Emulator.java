@@ -7,11 +7,17 @@ package Emulator;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferStrategy;
+import java.io.IOException;
 import java.util.Timer;
 import java.util.TimerTask;
 
 /**
- * Emulator.Emulator class.
+ * Emulator.Emulator class, Swing front-end of the emulation engine.
  */
 public class Emulator {
 
@@ -20,27 +26,55 @@ public class Emulator {
     // Number of buffers to use
     private static final int BUFFER_NUMBER = 2;
 
-    // Emulated CPU
-    private Cpu cpu;
+    // Emulation engine
+    private Engine engine;
     // Emulated screen
     private Screen screen;
     // Canvas
     private Canvas canvas;
     // Frame that contains the image
     private JFrame frame;
+    // Indicator that the whole image has to be presented on the next refresh
+    private volatile boolean fullRedraw = true;
 
     /**
      * Builder class for an emulator object.
      */
     public static class Builder {
         // Emulator.Screen scaling
-        private int scale;
+        int scale;
         // Path to the ROM file
-        private String rom;
+        String rom;
         // Time of one cycle in milliseconds
-        private int cycleTime;
+        int cycleTime;
+        // Number of commands per frame, 0 to derive it from cycle time
+        int cyclesPerFrame;
+        // Unthrottled mode indicator
+        boolean turbo;
         // Type of the screen
-        private int screenType;
+        int screenType;
+        // Way the CPU dispatches instructions
+        DispatchMode dispatchMode;
+        // Number of traced instructions, 0 if tracing is disabled
+        int traceCapacity;
+        // Source of random numbers, null for seeded default generator
+        IRandom random;
+        // Seed of the default random number generator
+        long seed;
+        // Path to the snapshot restored after loading the ROM, null if none
+        String stateFile;
+        // Path the input movie is recorded to, null if not recording
+        String recordFile;
+        // Path to the replayed input movie, null if not replaying
+        String replayFile;
+        // Path to the WAV file the beeper is rendered to, null to play it
+        String audioFile;
+        // Path to the file every executed instruction is traced to, null if none
+        String traceFile;
+        // Path the collapsed stacks of the profile are written to, null if not profiling
+        String profileFile;
+        // Metrics indicator, counted and exposed as a JMX MBean
+        boolean metrics;
 
         /**
          * Default constructor.
@@ -48,7 +82,9 @@ public class Emulator {
         public Builder() {
             this.scale = Screen.DEFAULT_SCALE;
             this.rom = null;
-            cycleTime = Cpu.DEFAULT_CYCLE_TIME;
+            cycleTime = Engine.DEFAULT_CYCLE_TIME;
+            dispatchMode = DispatchMode.SWITCH;
+            seed = System.nanoTime();
         }
 
         /**
@@ -84,6 +120,29 @@ public class Emulator {
             return this;
         }
 
+        /**
+         * Sets the number of commands executed in one 60 Hz frame.
+         * Overrides the cycle time.
+         *
+         * @param cyclesPerFrame number of commands per frame
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setCyclesPerFrame(int cyclesPerFrame) {
+            this.cyclesPerFrame = cyclesPerFrame;
+            return this;
+        }
+
+        /**
+         * Sets unthrottled mode, frames are run as fast as the host allows.
+         *
+         * @param turbo <code>true</code> for unthrottled mode
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setTurbo(boolean turbo) {
+            this.turbo = turbo;
+            return this;
+        }
+
         /**
          * Sets the type of the screen.
          *
@@ -95,6 +154,143 @@ public class Emulator {
             return this;
         }
 
+        /**
+         * Sets the way the CPU dispatches instructions.
+         *
+         * @param mode the dispatch mode to be used
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setDispatchMode(DispatchMode mode) {
+            this.dispatchMode = mode;
+            return this;
+        }
+
+        /**
+         * Sets the seed of the random number generator,
+         * runs with same seed and input are reproducible.
+         *
+         * @param seed the seed to be used
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Sets the source of random numbers, replacing the default generator.
+         *
+         * @param random the random number generator to be used
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setRandom(IRandom random) {
+            this.random = random;
+            return this;
+        }
+
+        /**
+         * Enables tracing of last executed instructions.
+         *
+         * @param capacity number of instructions to be kept, 0 to disable tracing
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setTraceCapacity(int capacity) {
+            this.traceCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets the snapshot restored after the ROM is loaded.
+         *
+         * @param stateFile path to the snapshot on disk
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setStateFile(String stateFile) {
+            this.stateFile = stateFile;
+            return this;
+        }
+
+        /**
+         * Records the keyboard input to an input movie, saved when the
+         * emulator exits.
+         *
+         * @param recordFile path to the movie on disk
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setRecordFile(String recordFile) {
+            this.recordFile = recordFile;
+            return this;
+        }
+
+        /**
+         * Replays the input movie instead of the keyboard input.
+         * Seed and number of commands per frame are taken from the movie.
+         *
+         * @param replayFile path to the movie on disk
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setReplayFile(String replayFile) {
+            this.replayFile = replayFile;
+            return this;
+        }
+
+        /**
+         * Renders the beeper to a WAV file instead of the sound device.
+         *
+         * @param audioFile path to the WAV file on disk
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setAudioFile(String audioFile) {
+            this.audioFile = audioFile;
+            return this;
+        }
+
+        /**
+         * Traces every executed instruction to a memory-mapped file,
+         * closed when the emulator exits.
+         *
+         * @param traceFile path to the trace on disk
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setTraceFile(String traceFile) {
+            this.traceFile = traceFile;
+            return this;
+        }
+
+        /**
+         * Profiles executed instructions and subroutines, the profile
+         * is written when the emulator exits.
+         *
+         * @param profileFile path to the collapsed stacks on disk
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setProfileFile(String profileFile) {
+            this.profileFile = profileFile;
+            return this;
+        }
+
+        /**
+         * Counts throughput metrics, exposed by the JMX MBean
+         * that can also change cycle budget and pause the engine.
+         *
+         * @param metrics <code>true</code> to enable metrics
+         * @return the Builder for the Emulator.Emulator
+         */
+        public Builder setMetrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Builds headless emulation engine, without any window.
+         *
+         * @return new Emulator.Engine object
+         * @throws IllegalArgumentException if ROM can not be loaded
+         */
+        public Engine buildEngine() {
+            return new Engine(this);
+        }
+
         /**
          * Builds Emulator.Emulator.
          *
@@ -111,32 +307,75 @@ public class Emulator {
      * @param builder Instance of builder class
      */
     private Emulator (Builder builder) {
-        Keyboard keyboard = new Keyboard();
-        Memory memory = new Memory();
-        ScreenType screenType = new ScreenType(builder.screenType);
-        screen = new Screen(builder.scale, screenType);
-
-        cpu = new Cpu(memory, screen, keyboard);
-        cpu.setCpuCycleTime(builder.cycleTime);
-
-        if (builder.rom != null) {
-            if (!memory.loadRom(builder.rom)) {
-                System.out.println("Error loading ROM");
-                System.exit(2);
-            }
-        } else {
-            cpu.setCpuPaused(true);
+        try {
+            engine = builder.buildEngine();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error loading ROM: " + e.getMessage());
+            System.exit(2);
+        }
+        if (builder.recordFile != null || builder.audioFile != null || builder.traceFile != null
+                || builder.profileFile != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    engine.stop();
+                    try {
+                        engine.saveRecording();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Unable to save input movie!");
+                    }
+                    try {
+                        engine.closeAudio();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Unable to save audio!");
+                    }
+                    try {
+                        engine.closeTrace();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Unable to save trace!");
+                    }
+                    try {
+                        engine.saveProfile();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Unable to save profile!");
+                    }
+                }
+            });
+        }
+        screen = engine.getScreen();
+
+        if (builder.audioFile == null) {
+            Beeper beeper = new Beeper();
+            beeper.start();
+            engine.setAudio(beeper);
         }
 
         initEmulator(screen);
-        canvas.addKeyListener(keyboard);
+        canvas.addKeyListener(engine.getKeyboard());
+    }
+
+    /**
+     * @return Emulation engine the window is attached to
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Changes colors of the screen, takes effect on the next refresh.
+     *
+     * @param type Type of the screen
+     */
+    public void setScreenType(int type) {
+        screen.setScreenType(new ScreenType(type));
+        fullRedraw = true;
     }
 
     /**
      * Starts the emulation.
      */
     public void start() {
-        cpu.start();
+        engine.start();
         Timer timer = new Timer();
         TimerTask task = new TimerTask() {
             public void run() {
@@ -147,18 +386,44 @@ public class Emulator {
     }
 
     /**
-     * Puts updated graphics to the screen.
+     * Puts updated graphics to the screen. Only rows changed since
+     * the last refresh are presented, and nothing at all if the screen
+     * did not change. The whole image is presented when the back buffer
+     * does not keep the previous frame, or its contents were lost.
      */
     public void refreshScreen() {
-        Graphics2D graphics;
-        if (canvas.getBufferStrategy() == null) {
+        BufferStrategy strategy = canvas.getBufferStrategy();
+        if (strategy == null) {
             throw new NullPointerException("No graphics");
-        } else {
-            graphics = (Graphics2D) canvas.getBufferStrategy().getDrawGraphics();
         }
-        graphics.drawImage(screen.getImage(), null, 0, 0);
-        graphics.dispose();
-        canvas.getBufferStrategy().show();
+        BufferCapabilities capabilities = strategy.getCapabilities();
+        boolean keepsContents = !capabilities.isPageFlipping()
+                || capabilities.getFlipContents() == BufferCapabilities.FlipContents.COPIED;
+
+        boolean full = fullRedraw || !keepsContents;
+        fullRedraw = false;
+        Rectangle area = screen.renderDirty();
+        if (full) {
+            area = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+        } else if (area == null) {
+            return;
+        }
+
+        do {
+            do {
+                Graphics2D graphics = (Graphics2D) strategy.getDrawGraphics();
+                if (strategy.contentsRestored()) {
+                    area = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+                }
+                graphics.drawImage(screen.getImage(), area.x, area.y, area.x + area.width, area.y + area.height,
+                        area.x, area.y, area.x + area.width, area.y + area.height, null);
+                graphics.dispose();
+            } while (strategy.contentsRestored());
+            strategy.show();
+            if (strategy.contentsLost()) {
+                area = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+            }
+        } while (strategy.contentsLost());
     }
 
     /**
@@ -182,6 +447,30 @@ public class Emulator {
 
         panel.add(canvas);
 
+        // Presents the whole image again whenever the window may have lost its contents
+        canvas.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                fullRedraw = true;
+            }
+
+            @Override
+            public void componentResized(ComponentEvent e) {
+                fullRedraw = true;
+            }
+        });
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowDeiconified(WindowEvent e) {
+                fullRedraw = true;
+            }
+
+            @Override
+            public void windowActivated(WindowEvent e) {
+                fullRedraw = true;
+            }
+        });
+
         frame.setMenuBar(null);
         frame.pack();
         frame.setResizable(false);
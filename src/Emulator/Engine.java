@@ -0,0 +1,841 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless emulation engine, owns the state of the emulated machine.
+ *
+ * Can be driven synchronously with <code>step</code> and <code>runFrames</code>,
+ * or started on its own thread. Front-ends such as the Swing window attach to it.
+ */
+public class Engine implements Runnable {
+
+    // Number of frames per second
+    public static final int FRAME_RATE = 60;
+    // Default CPU cycle time in milliseconds
+    protected static final int DEFAULT_CYCLE_TIME = 1;
+    // Default number of commands executed in one frame
+    public static final int DEFAULT_CYCLES_PER_FRAME = 1000 / (FRAME_RATE * DEFAULT_CYCLE_TIME);
+    // Duration of one frame in nanoseconds
+    private static final long FRAME_TIME = 1000000000L / FRAME_RATE;
+    // Maximum delay after which the scheduler stops catching up
+    private static final long MAX_FRAME_LAG = FRAME_TIME * 10;
+    // Delay while paused
+    private static final int PAUSE_DELAY = 300;
+
+    // Emulated CPU
+    private Cpu cpu;
+    // Emulated memory
+    private Memory memory;
+    // Emulated screen
+    private Screen screen;
+    // Emulated keyboard
+    private Keyboard keyboard;
+
+    // Source of scripted input, null if input comes only from keyboard
+    private IInputSource input;
+    // Movie the input is recorded to, null if not recording
+    private InputMovie recording;
+    // Location the recorded movie is saved to
+    private String recordFile;
+    // Length of the replayed movie in frames, 0 if not replaying
+    private long replayLength;
+    // Replay indicator, input of the physical keyboard is ignored
+    private boolean replaying;
+    // Output of the beeper, null if there is no sound
+    private IAudioSink audio;
+    // Writer of the full execution trace, null if disabled
+    private TraceWriter traceWriter;
+    // Profiler of the program, null if disabled
+    private Profiler profiler;
+    // Path the profile is written to, null if not profiling
+    private String profileFile;
+    // Metrics counters of the engine, null if metrics are disabled
+    private Metrics.Counters counters;
+    // Flight recorder event of the current frame, null if not begun
+    private Object frameEvent;
+    // Debugger stopping at breakpoints, null if not attached
+    private Debugger debugger;
+    // Indicator that the last run stopped at a breakpoint
+    private boolean stopped;
+    // Indicator that the command at the breakpoint is executed on the next run
+    private boolean resuming;
+    // Held while the machine state changes, so other threads can access it between frames
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    // Thread running the engine, null if not started
+    private Thread thread;
+    // Engine alive indicator
+    private volatile boolean alive;
+    // Engine paused indicator
+    private volatile boolean paused;
+    // Thread parked by runFrames until the engine is resumed, null if none
+    private volatile Thread pauseWaiter;
+    // Number of commands executed in one frame
+    private volatile int cyclesPerFrame;
+    // Unthrottled mode indicator, frames are run as fast as possible
+    private volatile boolean turbo;
+    // Virtual clock, number of executed commands
+    private long cycles;
+    // Virtual clock, number of finished frames
+    private long frames;
+    // Number of commands executed in the current frame
+    private int frameCycles;
+
+    /**
+     * Creates the engine configured by the builder.
+     *
+     * @param builder Instance of builder class
+     */
+    Engine(Emulator.Builder builder) {
+        keyboard = new Keyboard();
+        memory = new Memory();
+        screen = new Screen(builder.scale, new ScreenType(builder.screenType));
+
+        long seed = builder.seed;
+        if (builder.cyclesPerFrame > 0) {
+            cyclesPerFrame = builder.cyclesPerFrame;
+        } else {
+            cyclesPerFrame = Math.max(1, 1000 / (FRAME_RATE * builder.cycleTime));
+        }
+        turbo = builder.turbo;
+
+        InputMovie replay = null;
+        if (builder.replayFile != null) {
+            try {
+                replay = InputMovie.load(builder.replayFile);
+                if (builder.rom == null || InputMovie.hashRom(builder.rom) != replay.getRomHash()) {
+                    throw new IllegalArgumentException("Input movie was recorded with a different ROM");
+                }
+                if (builder.stateFile != null) {
+                    throw new IllegalArgumentException("Input movie can not be replayed from a snapshot");
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error loading input movie " + builder.replayFile);
+            }
+            seed = replay.getSeed();
+            cyclesPerFrame = replay.getCyclesPerFrame();
+            replayLength = replay.getLength();
+            replaying = true;
+        }
+        if (builder.recordFile != null) {
+            if (builder.random != null || builder.stateFile != null || builder.rom == null) {
+                throw new IllegalArgumentException("Recording needs a ROM, the default random generator and no snapshot");
+            }
+            try {
+                recording = new InputMovie(InputMovie.hashRom(builder.rom), seed, cyclesPerFrame);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error loading ROM " + builder.rom);
+            }
+            recordFile = builder.recordFile;
+        }
+
+        cpu = new Cpu(memory, screen, keyboard);
+        cpu.setDispatchMode(builder.dispatchMode);
+        cpu.setRandom(builder.random != null && replay == null ? builder.random : new XorShiftRandom(seed));
+        if (builder.traceCapacity > 0) {
+            cpu.setTracer(new Tracer(builder.traceCapacity));
+        }
+
+        if (builder.rom != null) {
+            if (!memory.loadRom(builder.rom)) {
+                throw new IllegalArgumentException("Error loading ROM " + builder.rom);
+            }
+        } else {
+            paused = true;
+        }
+
+        if (builder.stateFile != null) {
+            try {
+                loadState(new File(builder.stateFile));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error loading state " + builder.stateFile);
+            }
+        }
+
+        if (replay != null) {
+            setInput(replay);
+        }
+        if (builder.audioFile != null) {
+            audio = new WavWriter(builder.audioFile);
+        }
+        if (builder.traceFile != null) {
+            try {
+                traceWriter = new TraceWriter(builder.traceFile, cycles);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error creating trace " + builder.traceFile);
+            }
+            cpu.setTraceWriter(traceWriter);
+        }
+        if (builder.profileFile != null) {
+            profiler = new Profiler(memory, builder.rom != null ? new File(builder.rom).getName() : "rom");
+            profileFile = builder.profileFile;
+            cpu.setProfiler(profiler);
+        }
+        if (builder.metrics) {
+            Metrics metrics = Metrics.getInstance();
+            counters = new Metrics.Counters(metrics);
+            cpu.setCounters(counters);
+            metrics.attach(this);
+        }
+    }
+
+    /**
+     * Executes given number of commands. Every time the budget
+     * of the frame is used up, the frame ends and timers tick.
+     * Stops early if the CPU waits for a key, or at a breakpoint
+     * of the attached debugger.
+     *
+     * @param n Number of commands to be executed
+     * @return Number of executed commands
+     */
+    public long step(long n) {
+        long executed = 0;
+        lock.lock();
+        stopped = false;
+        try {
+            while (executed < n && !isWaitingForKey()) {
+                int budget = cyclesPerFrame;
+                if (frameCycles >= budget) {
+                    endFrame();
+                    continue;
+                }
+                int executedNow;
+                if (debugger != null && debugger.isArmed()) {
+                    // Commands are executed one by one, so no breakpoint is skipped
+                    if (!resuming && debugger.isBreakpoint(cpu.getProgramCounter())) {
+                        stopped = true;
+                        resuming = true;
+                        break;
+                    }
+                    resuming = false;
+                    cpu.executeNextCommand();
+                    executedNow = 1;
+                } else {
+                    resuming = false;
+                    executedNow = cpu.executeCommands((int) Math.min(n - executed, budget - frameCycles));
+                }
+                executed += executedNow;
+                frameCycles += executedNow;
+                cycles += executedNow;
+                if (frameCycles >= budget) {
+                    endFrame();
+                }
+            }
+        } catch (RuntimeException e) {
+            cpu.printTrace();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        return executed;
+    }
+
+    /**
+     * Executes commands until given number of frames is finished.
+     * While the CPU waits for a key, frames end right away, so the
+     * run skips ahead to the next scripted input event.
+     * While the engine is paused, the calling thread is parked until it is
+     * resumed. At a breakpoint of the attached debugger the engine pauses,
+     * so the run goes on only once the debugger resumes it.
+     *
+     * @param n Number of frames to be executed
+     * @return Number of executed commands
+     */
+    public long runFrames(int n) {
+        long executed = 0;
+        long target = frames + n;
+        while (true) {
+            waitWhilePaused();
+            lock.lock();
+            try {
+                if (frames >= target) {
+                    break;
+                }
+                beginFrameEvent();
+                int remaining = cyclesPerFrame - frameCycles;
+                if (remaining > 0 && !isWaitingForKey()) {
+                    executed += step(remaining);
+                    if (stopped) {
+                        paused = true;
+                    }
+                } else {
+                    endFrame();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Executes commands until given frame starts, even while paused.
+     * Stops early at a breakpoint of the attached debugger or once
+     * given number of commands is executed.
+     *
+     * @param frame Number of the frame to run to
+     * @param limit Maximum number of commands to be executed
+     * @return Number of executed commands
+     */
+    long runToFrame(long frame, long limit) {
+        long executed = 0;
+        while (frames < frame && executed < limit) {
+            lock.lock();
+            try {
+                beginFrameEvent();
+                int remaining = cyclesPerFrame - frameCycles;
+                if (remaining > 0 && !isWaitingForKey()) {
+                    executed += step(Math.min(remaining, limit - executed));
+                    if (stopped) {
+                        break;
+                    }
+                } else {
+                    endFrame();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Begins the flight recorder event of the current frame, committed
+     * by <code>endFrame</code>, unless it was begun already.
+     */
+    private void beginFrameEvent() {
+        if (frameEvent == null && FlightEvents.isActive()) {
+            frameEvent = FlightEvents.FrameEvent.start();
+        }
+    }
+
+    /**
+     * Parks the calling thread while the engine is paused.
+     */
+    private void waitWhilePaused() {
+        if (!paused) {
+            return;
+        }
+        pauseWaiter = Thread.currentThread();
+        while (paused) {
+            LockSupport.park(this);
+        }
+        pauseWaiter = null;
+    }
+
+    /**
+     * Executes one frame of commands in real time. While the CPU waits
+     * for a key, the thread is parked until the key is pressed or
+     * the frame is over, whichever comes first.
+     *
+     * @param deadline Time the frame is over, in nanoseconds
+     */
+    private void runFrame(long deadline) {
+        lock.lock();
+        try {
+            beginFrameEvent();
+        } finally {
+            lock.unlock();
+        }
+        long target = frames + 1;
+        while (frames < target) {
+            if (!turbo && isWaitingForKeyLocked()) {
+                long delay = deadline - System.nanoTime();
+                if (delay > 0) {
+                    keyboard.setWaiter(thread);
+                    if (isWaitingForKeyLocked()) {
+                        LockSupport.parkNanos(this, delay);
+                    }
+                    keyboard.setWaiter(null);
+                    continue;
+                }
+            }
+
+            lock.lock();
+            try {
+                int remaining = cyclesPerFrame - frameCycles;
+                if (remaining > 0 && !isWaitingForKey()) {
+                    step(remaining);
+                    if (stopped) {
+                        paused = true;
+                        break;
+                    }
+                } else {
+                    endFrame();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks if the CPU waits for a key, from outside of a frame.
+     */
+    private boolean isWaitingForKeyLocked() {
+        lock.lock();
+        try {
+            return isWaitingForKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the CPU waits for a key that is not pressed
+     */
+    private boolean isWaitingForKey() {
+        if (!cpu.isWaitingForKey()) {
+            return false;
+        }
+        updateKeyboard();
+        boolean waiting = keyboard.getKeyPressed() == -1;
+        if (counters != null) {
+            counters.keyWait(waiting);
+        }
+        return waiting;
+    }
+
+    /**
+     * Finishes current frame of emulated time.
+     */
+    private void endFrame() {
+        screen.publish();
+        if (audio != null) {
+            audio.frame(cpu.isSoundOn());
+        }
+        cpu.decrementTimers();
+        if (frameEvent != null) {
+            FlightEvents.FrameEvent.end(frameEvent, frames, frameCycles);
+            frameEvent = null;
+        }
+        frames++;
+        frameCycles = 0;
+        if (counters != null) {
+            counters.endFrame();
+        }
+        updateKeyboard();
+    }
+
+    /**
+     * Applies input of the physical keyboard and scripted input due
+     * at the current position, and records the result if recording.
+     */
+    private void updateKeyboard() {
+        if (replaying) {
+            keyboard.clearEvents();
+        } else {
+            keyboard.update();
+        }
+        if (input != null) {
+            input.apply(frames, frameCycles, keyboard);
+        }
+        if (recording != null) {
+            recording.record(frames, frameCycles, keyboard.getPressedKeys());
+        }
+    }
+
+    /**
+     * Writes the recorded movie to the disk. Must not be called
+     * while the engine thread is running.
+     *
+     * @throws IOException if the movie can not be written
+     */
+    public void saveRecording() throws IOException {
+        if (recording != null) {
+            recording.record(frames, frameCycles, keyboard.getPressedKeys());
+            recording.save(new File(recordFile));
+        }
+    }
+
+    /**
+     * Sets the output of the beeper, told the state of the beeper once per frame.
+     *
+     * @param audio Output to be used, <code>null</code> for no sound
+     */
+    public void setAudio(IAudioSink audio) {
+        this.audio = audio;
+    }
+
+    /**
+     * Closes the output of the beeper, writing rendered audio if any.
+     * Must not be called while the engine thread is running.
+     *
+     * @throws IOException if rendered audio can not be written
+     */
+    public void closeAudio() throws IOException {
+        if (audio != null) {
+            audio.close();
+            audio = null;
+        }
+    }
+
+    /**
+     * Closes the execution trace, cutting the file to the written records.
+     * Must not be called while the engine thread is running.
+     *
+     * @throws IOException if the trace can not be written
+     */
+    public void closeTrace() throws IOException {
+        if (traceWriter != null) {
+            cpu.setTraceWriter(null);
+            traceWriter.close();
+            traceWriter = null;
+        }
+    }
+
+    /**
+     * Writes the profile in collapsed stack format and prints
+     * the hottest instructions and subroutines.
+     * Must not be called while the engine thread is running.
+     *
+     * @throws IOException if the profile can not be written
+     */
+    public void saveProfile() throws IOException {
+        if (profiler != null) {
+            profiler.writeCollapsed(new File(profileFile));
+            profiler.printReport();
+        }
+    }
+
+    /**
+     * Detaches the engine from the shared metrics, so it is no longer
+     * controlled by the MBean.
+     */
+    public void detachMetrics() {
+        if (counters != null) {
+            Metrics.getInstance().detach(this);
+            cpu.setCounters(null);
+            counters = null;
+        }
+    }
+
+    /**
+     * @return Length of the replayed movie in frames, 0 if not replaying
+     */
+    public long getReplayLength() {
+        return replayLength;
+    }
+
+    /**
+     * @return <code>true</code> if an input movie is recorded or replayed,
+     *         so the number of commands per frame must stay as in the movie
+     */
+    public boolean isRecordingOrReplaying() {
+        return recording != null || replaying;
+    }
+
+    /**
+     * Sets the source of scripted input, applied at the start of every frame.
+     *
+     * @param input Source of input, <code>null</code> for none
+     */
+    public void setInput(IInputSource input) {
+        this.input = input;
+        if (input != null) {
+            input.apply(frames, frameCycles, keyboard);
+        }
+    }
+
+    /**
+     * @return Size of the snapshot of this engine in bytes
+     */
+    public int getStateSize() {
+        return Snapshot.size(screen);
+    }
+
+    /**
+     * Takes a snapshot of the whole machine.
+     * Must not be called while the engine thread is running a frame.
+     *
+     * @return Snapshot data
+     */
+    public byte[] saveState() {
+        byte[] data = new byte[getStateSize()];
+        saveState(data);
+        return data;
+    }
+
+    /**
+     * Takes a snapshot of the whole machine into given array,
+     * so repeated snapshots do not allocate.
+     * Must not be called while the engine thread is running a frame.
+     *
+     * @param data Array of at least <code>getStateSize()</code> bytes
+     */
+    public void saveState(byte[] data) {
+        Object event = FlightEvents.isActive() ? FlightEvents.SnapshotEvent.start(false) : null;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        Snapshot.writeHeader(buffer);
+        memory.saveState(buffer);
+        cpu.saveState(buffer);
+        screen.saveState(buffer);
+        keyboard.saveState(buffer);
+        buffer.putLong(cycles);
+        buffer.putLong(frames);
+        buffer.putInt(frameCycles);
+        if (event != null) {
+            FlightEvents.SnapshotEvent.end(event, data.length, frames);
+        }
+    }
+
+    /**
+     * Restores the whole machine from the snapshot.
+     * Must not be called while the engine thread is running a frame.
+     * The engine stays paused or running as it was, callers resume it if needed.
+     *
+     * @param data Snapshot data
+     */
+    public void loadState(byte[] data) {
+        if (data.length != getStateSize()) {
+            throw new IllegalArgumentException("Snapshot size does not match");
+        }
+        Object event = FlightEvents.isActive() ? FlightEvents.SnapshotEvent.start(true) : null;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        Snapshot.readHeader(buffer);
+        memory.loadState(buffer);
+        cpu.loadState(buffer);
+        screen.loadState(buffer);
+        keyboard.loadState(buffer);
+        cycles = buffer.getLong();
+        frames = buffer.getLong();
+        frameCycles = buffer.getInt();
+        if (traceWriter != null) {
+            traceWriter.setCycle(cycles);
+        }
+        if (event != null) {
+            FlightEvents.SnapshotEvent.end(event, data.length, frames);
+        }
+    }
+
+    /**
+     * Writes the snapshot of the whole machine to the disk.
+     *
+     * @param file Destination file
+     * @throws IOException if the file can not be written
+     */
+    public void saveState(File file) throws IOException {
+        Snapshot.write(file, saveState());
+    }
+
+    /**
+     * Restores the whole machine from the snapshot on the disk.
+     *
+     * @param file Source file
+     * @throws IOException if the file can not be read
+     */
+    public void loadState(File file) throws IOException {
+        loadState(Snapshot.read(file));
+    }
+
+    /**
+     * Starts the engine on its own thread.
+     */
+    public void start() {
+        alive = true;
+        thread = new Thread(this, "Cpu");
+        thread.start();
+    }
+
+    /**
+     * Stops the engine thread after the current frame and waits for it to finish.
+     */
+    public void stop() {
+        alive = false;
+        if (thread != null && thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                System.out.println("Engine stop interrupted");
+            }
+        }
+    }
+
+    /**
+     * Runs the code in loop, one frame of commands at a time.
+     * Unless in turbo mode, the thread is parked once per frame
+     * until the start of the next one, and while waiting for a key.
+     */
+    public void run() {
+        long frameStart = System.nanoTime();
+        boolean silenced = false;
+        while (alive) {
+            if (paused) {
+                // The timers stand still, so the tone would play for the whole pause
+                if (!silenced && audio != null) {
+                    audio.frame(false);
+                    silenced = true;
+                }
+                try {
+                    Thread.sleep(PAUSE_DELAY);
+                } catch (InterruptedException e) {
+                    System.out.println("CPU sleep interrupted");
+                }
+                frameStart = System.nanoTime();
+                continue;
+            }
+            silenced = false;
+
+            if (counters != null) {
+                counters.startFrame();
+            }
+            runFrame(frameStart + FRAME_TIME);
+
+            if (!turbo) {
+                frameStart += FRAME_TIME;
+                long delay = frameStart - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                } else if (delay < -MAX_FRAME_LAG) {
+                    frameStart = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    /**
+     * Attaches the debugger.
+     *
+     * @param debugger Debugger to be attached, <code>null</code> to detach
+     */
+    void setDebugger(Debugger debugger) {
+        this.debugger = debugger;
+    }
+
+    /**
+     * Waits until the current frame is over and keeps the machine
+     * state from changing until <code>unlock</code>.
+     */
+    void lock() {
+        lock.lock();
+    }
+
+    /**
+     * Lets the engine continue after <code>lock</code>.
+     */
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Lets the command at the current breakpoint execute on the next run.
+     */
+    void resume() {
+        resuming = true;
+    }
+
+    /**
+     * @return <code>true</code> if the last run stopped at a breakpoint
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Sets the engine to paused/not paused mode.
+     * Resuming also wakes the thread waiting in <code>runFrames</code>.
+     *
+     * @param paused <code>true</code> if engine is paused
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            LockSupport.unpark(pauseWaiter);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if engine is paused
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Sets number of commands executed in one frame.
+     *
+     * @param cyclesPerFrame New number of commands per frame
+     */
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        if (cyclesPerFrame <= 0) {
+            throw new IllegalArgumentException("Invalid number of cycles per frame " + cyclesPerFrame);
+        }
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    /**
+     * @return Number of commands executed in one frame
+     */
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    /**
+     * Sets the engine to unthrottled mode, running frames as fast as possible.
+     *
+     * @param turbo <code>true</code> if frames are not limited to 60 Hz
+     */
+    public void setTurbo(boolean turbo) {
+        this.turbo = turbo;
+    }
+
+    /**
+     * @return <code>true</code> if engine is in unthrottled mode
+     */
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    /**
+     * @return Number of executed commands
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @return Number of finished frames
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return Emulated CPU
+     */
+    public Cpu getCpu() {
+        return cpu;
+    }
+
+    /**
+     * @return Emulated memory
+     */
+    public Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return Emulated screen
+     */
+    public Screen getScreen() {
+        return screen;
+    }
+
+    /**
+     * @return Emulated keyboard
+     */
+    public Keyboard getKeyboard() {
+        return keyboard;
+    }
+}
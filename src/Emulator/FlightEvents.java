@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the emulator, so its hot spots can be
+ * correlated with GC and JIT activity in one recording.
+ *
+ * Events are emitted only if the runtime has JFR and the recorder was
+ * started, checked by <code>isActive</code>. Event classes are loaded only
+ * when emitted for the first time, so the emulator still runs on runtimes
+ * without JFR and does not pay for initializing JFR if nothing records.
+ */
+final class FlightEvents {
+
+    // Availability of JFR in the runtime
+    private static final boolean AVAILABLE = isAvailable();
+
+    private FlightEvents() {
+    }
+
+    /**
+     * Checks if the runtime has JFR.
+     */
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the events can be recorded
+     */
+    static boolean isActive() {
+        return AVAILABLE && FlightRecorder.isInitialized();
+    }
+
+    /**
+     * Emulated frame, from its start until the timers tick.
+     */
+    @Name("CHEAP8.Frame")
+    @Label("Frame")
+    @Category("CHEAP-8")
+    @Description("Emulated frame of 1/60 s, from its start until the timers tick")
+    @StackTrace(false)
+    static class FrameEvent extends Event {
+        @Label("Frame")
+        long frame;
+        @Label("Cycles")
+        @Description("Commands executed in the frame")
+        int cycles;
+
+        /**
+         * Starts the event of the next frame.
+         *
+         * @return Started event, <code>null</code> if not recorded
+         */
+        static Object start() {
+            FrameEvent event = new FrameEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Ends the event of the frame.
+         *
+         * @param started Event returned by <code>start</code>
+         * @param frame Number of the frame
+         * @param cycles Commands executed in the frame
+         */
+        static void end(Object started, long frame, int cycles) {
+            FrameEvent event = (FrameEvent) started;
+            event.frame = frame;
+            event.cycles = cycles;
+            event.commit();
+        }
+    }
+
+    /**
+     * Sprite drawn by DXYN.
+     */
+    @Name("CHEAP8.SpriteDraw")
+    @Label("Sprite Draw")
+    @Category("CHEAP-8")
+    @StackTrace(false)
+    static class SpriteDrawEvent extends Event {
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Height")
+        int height;
+        @Label("Collision")
+        boolean collision;
+
+        /**
+         * Emits the event of the drawn sprite.
+         *
+         * @param x Horizontal coordinate
+         * @param y Vertical coordinate
+         * @param height Height of the sprite
+         * @param collision Collision indicator
+         */
+        static void emit(int x, int y, int height, boolean collision) {
+            SpriteDrawEvent event = new SpriteDrawEvent();
+            if (event.isEnabled()) {
+                event.x = x;
+                event.y = y;
+                event.height = height;
+                event.collision = collision;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Wait of FX0A for a key, from the first check until the key is pressed.
+     */
+    @Name("CHEAP8.KeyWait")
+    @Label("Key Wait")
+    @Category("CHEAP-8")
+    @StackTrace(false)
+    static class KeyWaitEvent extends Event {
+        @Label("Key")
+        int key;
+
+        /**
+         * Starts the event of the wait.
+         *
+         * @return Started event, <code>null</code> if not recorded
+         */
+        static Object start() {
+            KeyWaitEvent event = new KeyWaitEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Ends the event of the wait.
+         *
+         * @param started Event returned by <code>start</code>
+         * @param key Pressed key
+         */
+        static void end(Object started, int key) {
+            KeyWaitEvent event = (KeyWaitEvent) started;
+            event.key = key;
+            event.commit();
+        }
+    }
+
+    /**
+     * Loading of the ROM into the memory.
+     */
+    @Name("CHEAP8.RomLoad")
+    @Label("ROM Load")
+    @Category("CHEAP-8")
+    static class RomLoadEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Size")
+        int size;
+        @Label("Success")
+        boolean success;
+
+        /**
+         * Starts the event of the load.
+         *
+         * @param path Location of the ROM
+         * @return Started event, <code>null</code> if not recorded
+         */
+        static Object start(String path) {
+            RomLoadEvent event = new RomLoadEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.path = path;
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Ends the event of the load.
+         *
+         * @param started Event returned by <code>start</code>
+         * @param size Number of loaded bytes
+         * @param success Success indicator
+         */
+        static void end(Object started, int size, boolean success) {
+            RomLoadEvent event = (RomLoadEvent) started;
+            event.size = size;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    /**
+     * Snapshot taken or restored.
+     */
+    @Name("CHEAP8.Snapshot")
+    @Label("Snapshot")
+    @Category("CHEAP-8")
+    static class SnapshotEvent extends Event {
+        @Label("Restore")
+        @Description("True if the snapshot was restored, false if taken")
+        boolean restore;
+        @Label("Size")
+        int size;
+        @Label("Frame")
+        long frame;
+
+        /**
+         * Starts the event of the snapshot.
+         *
+         * @param restore <code>true</code> if the snapshot is restored
+         * @return Started event, <code>null</code> if not recorded
+         */
+        static Object start(boolean restore) {
+            SnapshotEvent event = new SnapshotEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.restore = restore;
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Ends the event of the snapshot.
+         *
+         * @param started Event returned by <code>start</code>
+         * @param size Size of the snapshot
+         * @param frame Frame of the machine state
+         */
+        static void end(Object started, int size, long frame) {
+            SnapshotEvent event = (SnapshotEvent) started;
+            event.size = size;
+            event.frame = frame;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.IOException;
+
+public interface IAudioSink {
+
+    void frame(boolean on);
+
+    void close() throws IOException;
+
+}
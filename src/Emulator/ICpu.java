@@ -9,6 +9,7 @@ interface ICpu {
 
     void executeNextCommand();
     void execute(int opcode);
+    void executeDecoded(int opcode);
 
     // 0x0XXX
     void clearScreen();
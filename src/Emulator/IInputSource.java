@@ -0,0 +1,12 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+public interface IInputSource {
+
+    void apply(long frame, int cycle, Keyboard keyboard);
+
+}
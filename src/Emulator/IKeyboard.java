@@ -9,4 +9,8 @@ interface IKeyboard {
 
     int getKeyPressed();
 
+    boolean isKeyPressed(int key);
+
+    int getPressedKeys();
+
 }
@@ -0,0 +1,13 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+interface IMemoryListener {
+
+    void memoryWritten(int location);
+
+    void memoryCleared();
+}
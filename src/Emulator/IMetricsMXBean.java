@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+public interface IMetricsMXBean {
+
+    long getInstructions();
+
+    long[] getOpcodeClassCounts();
+
+    double getInstructionsPerSecond();
+
+    long getFrames();
+
+    double getFramesPerSecond();
+
+    long getSpriteDraws();
+
+    long getSpriteCollisions();
+
+    long getKeyWaitMillis();
+
+    long[] getFrameTimeBucketsMicros();
+
+    long[] getFrameTimeHistogram();
+
+    int getEngineCount();
+
+    int getCyclesPerFrame();
+
+    void setCyclesPerFrame(int cyclesPerFrame);
+
+    boolean isPaused();
+
+    void setPaused(boolean paused);
+
+    void reset();
+
+}
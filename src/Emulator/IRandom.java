@@ -0,0 +1,12 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+public interface IRandom {
+
+    int nextByte();
+
+}
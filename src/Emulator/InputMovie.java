@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Recorded keyboard input of a whole session, replayed deterministically.
+ *
+ * The file starts with a header (magic, version, hash of the ROM, random seed,
+ * commands per frame, length in frames, number of changes), followed by
+ * every change of the pressed keys as frame delta and command within the frame,
+ * both variable-length encoded, and the new 16-bit key mask.
+ * Keys change at frame boundaries, or in the middle of a frame only while
+ * the CPU waits for a key, so recording the position is enough to replay
+ * the session exactly, no matter how fast the host is.
+ */
+public class InputMovie implements IInputSource {
+
+    // Identifies the movie file
+    private static final int MAGIC = 0x43384D56; // "C8MV"
+    // Version of the format
+    private static final int VERSION = 1;
+    // Maximum length of a variable-length number, enough for 64 bits
+    private static final int MAX_VARINT_BYTES = 10;
+    // Initial number of changes the arrays can hold
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Hash of the ROM the movie was recorded with
+    private long romHash;
+    // Seed of the random number generator
+    private long seed;
+    // Number of commands per frame
+    private int cyclesPerFrame;
+    // Length of the movie in frames
+    private long length;
+
+    // Frames of the changes
+    private long[] frames = new long[INITIAL_CAPACITY];
+    // Commands within the frame of the changes
+    private int[] cycles = new int[INITIAL_CAPACITY];
+    // Pressed keys after the changes
+    private int[] masks = new int[INITIAL_CAPACITY];
+    // Number of changes
+    private int count;
+    // Index of the next change to be replayed
+    private int next;
+    // Pressed keys after the last recorded change
+    private int lastMask;
+
+    /**
+     * Creates an empty movie to be recorded.
+     *
+     * @param romHash Hash of the ROM
+     * @param seed Seed of the random number generator
+     * @param cyclesPerFrame Number of commands per frame
+     */
+    public InputMovie(long romHash, long seed, int cyclesPerFrame) {
+        this.romHash = romHash;
+        this.seed = seed;
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    /**
+     * Calculates 64-bit FNV-1a hash of the ROM file.
+     *
+     * @param filePath Location of the ROM on the disk
+     * @return Hash of the ROM
+     * @throws IOException if the ROM can not be read
+     */
+    public static long hashRom(String filePath) throws IOException {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : Files.readAllBytes(Paths.get(filePath))) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Reads the movie from the disk.
+     *
+     * @param filePath Location of the movie on the disk
+     * @return Movie ready to be replayed
+     * @throws IOException if the movie can not be read
+     */
+    public static InputMovie load(String filePath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("Not an input movie " + filePath);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported input movie version " + version);
+            }
+            InputMovie movie = new InputMovie(in.readLong(), in.readLong(), in.readInt());
+            movie.length = in.readLong();
+            int count = in.readInt();
+            long frame = 0;
+            for (int i = 0; i < count; i++) {
+                frame += readVarInt(in);
+                long cycle = readVarInt(in);
+                if (cycle > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Corrupted input movie " + filePath);
+                }
+                movie.add(frame, (int) cycle, in.readUnsignedShort());
+            }
+            return movie;
+        }
+    }
+
+    /**
+     * Writes the movie to the disk.
+     *
+     * @param file Destination file
+     * @throws IOException if the movie can not be written
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(romHash);
+            out.writeLong(seed);
+            out.writeInt(cyclesPerFrame);
+            out.writeLong(length);
+            out.writeInt(count);
+            long frame = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, frames[i] - frame);
+                writeVarInt(out, cycles[i]);
+                out.writeShort(masks[i]);
+                frame = frames[i];
+            }
+        }
+    }
+
+    /**
+     * Writes unsigned number, 7 bits per byte, lowest bits first.
+     */
+    private static void writeVarInt(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads unsigned number written by <code>writeVarInt</code>.
+     */
+    private static long readVarInt(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift == MAX_VARINT_BYTES * 7) {
+                throw new IllegalArgumentException("Corrupted input movie, number too long");
+            }
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Appends the change.
+     */
+    private void add(long frame, int cycle, int mask) {
+        if (count == frames.length) {
+            frames = Arrays.copyOf(frames, count * 2);
+            cycles = Arrays.copyOf(cycles, count * 2);
+            masks = Arrays.copyOf(masks, count * 2);
+        }
+        frames[count] = frame;
+        cycles[count] = cycle;
+        masks[count] = mask;
+        count++;
+        lastMask = mask;
+    }
+
+    /**
+     * Records pressed keys at given position, if they changed.
+     *
+     * @param frame Current frame
+     * @param cycle Number of commands executed in the current frame
+     * @param mask Pressed keys, bit n set if key n is pressed
+     */
+    void record(long frame, int cycle, int mask) {
+        if (mask != lastMask) {
+            add(frame, cycle, mask);
+        }
+        length = frame;
+    }
+
+    /**
+     * Applies all changes due at given position.
+     *
+     * @param frame Current frame
+     * @param cycle Number of commands executed in the current frame
+     * @param keyboard Keyboard the changes are applied to
+     */
+    public void apply(long frame, int cycle, Keyboard keyboard) {
+        while (next < count && (frames[next] < frame || (frames[next] == frame && cycles[next] <= cycle))) {
+            keyboard.setPressedKeys(masks[next]);
+            next++;
+        }
+    }
+
+    /**
+     * @return Hash of the ROM the movie was recorded with
+     */
+    public long getRomHash() {
+        return romHash;
+    }
+
+    /**
+     * @return Seed of the random number generator
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return Number of commands per frame
+     */
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    /**
+     * @return Length of the movie in frames
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scripted keyboard input for headless runs.
+ *
+ * Every line of the script holds one event in form of
+ * <code>FRAME down|up KEY</code>, where key is a hexadecimal digit.
+ * Events must be ordered by frame, <code>#</code> starts a comment.
+ */
+public class InputScript implements IInputSource {
+
+    // Errors
+    private static final String ERROR_FORMAT = "Wrong format at line ";
+    private static final String ERROR_ORDER = "Events out of order at line ";
+
+    // Frames of the events
+    private long[] frames;
+    // Keys of the events
+    private int[] keys;
+    // Press indicators of the events, release otherwise
+    private boolean[] presses;
+    // Index of the next event to be applied
+    private int next;
+
+    /**
+     * Reads the script from the disk.
+     *
+     * @param filePath Location of the script on the disk
+     * @return Parsed script
+     * @throws IOException if the script can not be read
+     */
+    public static InputScript load(String filePath) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return new InputScript(lines);
+    }
+
+    /**
+     * Parses the script.
+     *
+     * @param lines Lines of the script
+     */
+    public InputScript(List<String> lines) {
+        frames = new long[lines.size()];
+        keys = new int[lines.size()];
+        presses = new boolean[lines.size()];
+        int count = 0;
+
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.contains("#")) {
+                line = line.substring(0, line.indexOf("#"));
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] event = line.split("\\s+");
+            if (event.length != 3 || !(event[1].equals("down") || event[1].equals("up"))) {
+                throw new IllegalArgumentException(ERROR_FORMAT + (i + 1));
+            }
+            try {
+                frames[count] = Long.parseLong(event[0]);
+                keys[count] = Integer.parseInt(event[2], 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(ERROR_FORMAT + (i + 1));
+            }
+            if (frames[count] < 0 || keys[count] < 0 || keys[count] > 0xF) {
+                throw new IllegalArgumentException(ERROR_FORMAT + (i + 1));
+            }
+            if (count > 0 && frames[count] < frames[count - 1]) {
+                throw new IllegalArgumentException(ERROR_ORDER + (i + 1));
+            }
+            presses[count] = event[1].equals("down");
+            count++;
+        }
+
+        frames = Arrays.copyOf(frames, count);
+        keys = Arrays.copyOf(keys, count);
+        presses = Arrays.copyOf(presses, count);
+        next = 0;
+    }
+
+    /**
+     * Applies all events due at given frame.
+     *
+     * @param frame Current frame
+     * @param cycle Number of commands executed in the current frame, not used
+     * @param keyboard Keyboard the events are applied to
+     */
+    public void apply(long frame, int cycle, Keyboard keyboard) {
+        while (next < frames.length && frames[next] <= frame) {
+            if (presses[next]) {
+                keyboard.press(keys[next]);
+            } else {
+                keyboard.release(keys[next]);
+            }
+            next++;
+        }
+    }
+}
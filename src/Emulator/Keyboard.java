@@ -7,10 +7,20 @@ package Emulator;
 
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Emulates the keyboard of CHIP-8.
  *
+ * State of all 16 keys is kept as a bit mask, bit n set if key n is pressed.
+ * Events of the physical keyboard are queued in order and applied
+ * by the emulation thread at frame boundaries, so the program sees
+ * input change only between frames.
+ *
  * Created by random on 16.08.2016.
  */
 public class Keyboard extends KeyAdapter implements IKeyboard {
@@ -38,8 +48,42 @@ public class Keyboard extends KeyAdapter implements IKeyboard {
             KeyEvent.VK_V // D
     };
 
-    // Pressed key, -1 if none
-    private int keyPressed = -1;
+    // Virtual keys indexed by physical key codes, -1 if not mapped
+    private static final byte[] keyLookup = new byte[256];
+
+    static {
+        Arrays.fill(keyLookup, (byte) -1);
+        for (int i = 0; i < keyMap.length; i++) {
+            keyLookup[keyMap[i]] = (byte) i;
+        }
+    }
+
+    // Size of the keyboard state in the snapshot
+    static final int STATE_SIZE = 2;
+
+    // Pressed keys, one bit per key
+    private final AtomicInteger pressedKeys = new AtomicInteger();
+    // Events of the physical keyboard not applied yet
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    // Keys pressed and released within one frame, released at the next boundary
+    private int deferredReleases;
+    // Thread waiting for a key press, null if none
+    private volatile Thread waiter;
+
+    /**
+     * Press or release of a key.
+     */
+    static class Event {
+        // Virtual key
+        final int key;
+        // Press indicator, release otherwise
+        final boolean pressed;
+
+        Event(int key, boolean pressed) {
+            this.key = key;
+            this.pressed = pressed;
+        }
+    }
 
     /**
      * Maps keys from physical keyboard to virtual one.
@@ -48,19 +92,149 @@ public class Keyboard extends KeyAdapter implements IKeyboard {
      * @return Virtual pressed key
      */
     private int mapKey(int key) {
-        for (int i = 0; i < keyMap.length; i++) {
-            if (keyMap[i] == key) {
-                return i;
+        return key >= 0 && key < keyLookup.length ? keyLookup[key] : -1;
+    }
+
+    /**
+     * @return Lowest pressed key, -1 if none
+     */
+    public int getKeyPressed() {
+        int keys = pressedKeys.get();
+        return keys == 0 ? -1 : Integer.numberOfTrailingZeros(keys);
+    }
+
+    /**
+     * @param key Virtual key, 0x0 to 0xF
+     * @return <code>true</code> if the key is pressed
+     */
+    public boolean isKeyPressed(int key) {
+        return (pressedKeys.get() & (1 << (key & 0xF))) != 0;
+    }
+
+    /**
+     * @return Pressed keys, bit n set if key n is pressed
+     */
+    public int getPressedKeys() {
+        return pressedKeys.get();
+    }
+
+    /**
+     * Sets the thread woken up as soon as a key is pressed.
+     *
+     * @param waiter Thread to be unparked, <code>null</code> for none
+     */
+    void setWaiter(Thread waiter) {
+        this.waiter = waiter;
+    }
+
+    /**
+     * Wakes up the waiting thread, if any.
+     */
+    private void wakeWaiter() {
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Presses the key of virtual keyboard.
+     *
+     * @param key Virtual key, 0x0 to 0xF
+     */
+    public void press(int key) {
+        int keys;
+        do {
+            keys = pressedKeys.get();
+        } while (!pressedKeys.compareAndSet(keys, keys | (1 << key)));
+        wakeWaiter();
+    }
+
+    /**
+     * Releases the key of virtual keyboard.
+     *
+     * @param key Virtual key, 0x0 to 0xF
+     */
+    public void release(int key) {
+        int keys;
+        do {
+            keys = pressedKeys.get();
+        } while (!pressedKeys.compareAndSet(keys, keys & ~(1 << key)));
+    }
+
+    /**
+     * Drops queued events of the physical keyboard.
+     */
+    void clearEvents() {
+        events.clear();
+    }
+
+    /**
+     * Sets all pressed keys at once.
+     *
+     * @param mask Pressed keys, bit n set if key n is pressed
+     */
+    void setPressedKeys(int mask) {
+        pressedKeys.set(mask & 0xFFFF);
+        if (mask != 0) {
+            wakeWaiter();
+        }
+    }
+
+    /**
+     * Applies queued events of the physical keyboard.
+     * Called by the emulation thread at frame boundaries.
+     * A key pressed and released between two boundaries stays
+     * pressed for one frame, so short taps are not lost.
+     *
+     * @return <code>true</code> if any event was applied
+     */
+    boolean update() {
+        boolean changed = false;
+        if (deferredReleases != 0) {
+            for (int key = 0; key < keyMap.length; key++) {
+                if ((deferredReleases & (1 << key)) != 0) {
+                    release(key);
+                }
+            }
+            deferredReleases = 0;
+            changed = true;
+        }
+
+        int pressedNow = 0;
+        Event event;
+        while ((event = events.poll()) != null) {
+            int bit = 1 << event.key;
+            if (event.pressed) {
+                press(event.key);
+                pressedNow |= bit;
+                deferredReleases &= ~bit;
+            } else if ((pressedNow & bit) != 0) {
+                deferredReleases |= bit;
+            } else {
+                release(event.key);
             }
+            changed = true;
         }
-        return -1;
+        return changed;
     }
 
     /**
-     * @return Currently pressed key
+     * Writes pressed keys to the snapshot, as a mask with one bit per key.
+     *
+     * @param buffer Buffer the snapshot is written to
      */
-    public int getKeyPressed() {
-        return keyPressed;
+    void saveState(ByteBuffer buffer) {
+        buffer.putShort((short) pressedKeys.get());
+    }
+
+    /**
+     * Restores pressed keys from the snapshot.
+     *
+     * @param buffer Buffer the snapshot is read from
+     */
+    void loadState(ByteBuffer buffer) {
+        pressedKeys.set(buffer.getShort() & 0xFFFF);
     }
 
     @Override
@@ -71,13 +245,20 @@ public class Keyboard extends KeyAdapter implements IKeyboard {
             System.exit(0);
         }
 
-        keyPressed = mapKey(e.getKeyCode());
+        int key = mapKey(e.getKeyCode());
+        if (key != -1) {
+            events.offer(new Event(key, true));
+            wakeWaiter();
+        }
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
         super.keyReleased(e);
 
-        keyPressed = -1;
+        int key = mapKey(e.getKeyCode());
+        if (key != -1) {
+            events.offer(new Event(key, false));
+        }
     }
 }
@@ -7,6 +7,7 @@ package Emulator;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Emulates the memory of CHIP-8.
@@ -16,19 +17,21 @@ import java.io.IOException;
 public class Memory implements IMemory {
 
     // Size of memory
-    private static final int MEMORY_SIZE = 0x1000;
+    static final int MEMORY_SIZE = 0x1000;
     // Offset for ROM
     private static final int ROM_OFFSET = 0x200;
     // Emulator.Memory locations
-    private short[] memory;
+    private byte[] memory;
     // ROM loaded indicator
     private boolean romLoaded;
+    // Listener notified about writes, null if none
+    private IMemoryListener listener;
 
     /**
      * Default constructor for Emulator.Memory object
      */
     public Memory() {
-        this.memory = new short[MEMORY_SIZE];
+        this.memory = new byte[MEMORY_SIZE];
         loadFonts();
         romLoaded = false;
     }
@@ -40,6 +43,18 @@ public class Memory implements IMemory {
         for (int i = 0; i < MEMORY_SIZE; i++) {
             memory[i] = 0x0;
         }
+        if (listener != null) {
+            listener.memoryCleared();
+        }
+    }
+
+    /**
+     * Sets the listener notified about every write to the memory.
+     *
+     * @param listener Listener to be notified, <code>null</code> for none
+     */
+    void setListener(IMemoryListener listener) {
+        this.listener = listener;
     }
 
     /**
@@ -65,7 +80,31 @@ public class Memory implements IMemory {
         if (location >= MEMORY_SIZE || location < 0) {
             throw new IllegalArgumentException("Segmentation fault");
         }
-        memory[location] = value;
+        memory[location] = (byte) value;
+        if (listener != null) {
+            listener.memoryWritten(location);
+        }
+    }
+
+    /**
+     * Writes content of the memory to the snapshot.
+     *
+     * @param buffer Buffer the snapshot is written to
+     */
+    void saveState(ByteBuffer buffer) {
+        buffer.put(memory);
+    }
+
+    /**
+     * Restores content of the memory from the snapshot.
+     *
+     * @param buffer Buffer the snapshot is read from
+     */
+    void loadState(ByteBuffer buffer) {
+        buffer.get(memory);
+        if (listener != null) {
+            listener.memoryCleared();
+        }
     }
 
     /**
@@ -75,9 +114,10 @@ public class Memory implements IMemory {
      * @return True if operation is successful, false otherwise
      */
     public boolean loadRom(String filePath) {
+        Object event = FlightEvents.isActive() ? FlightEvents.RomLoadEvent.start(filePath) : null;
+        int location = ROM_OFFSET;
         try {
             FileInputStream fileInputStream = new FileInputStream(filePath);
-            int location = ROM_OFFSET;
             int nextByte;
             while ((nextByte = fileInputStream.read()) != -1) {
                 if (location < MEMORY_SIZE) {
@@ -95,6 +135,10 @@ public class Memory implements IMemory {
             romLoaded = false;
             System.out.println("ERROR: Unable to open file!");
             return false;
+        } finally {
+            if (event != null) {
+                FlightEvents.RomLoadEvent.end(event, location - ROM_OFFSET, romLoaded);
+            }
         }
     }
 
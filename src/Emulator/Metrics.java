@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput metrics of all engines in the process, exposed as a JMX MBean.
+ *
+ * Every engine counts into its own plain <code>Counters</code>, touched only
+ * by the emulation thread, and adds them to the shared striped adders once
+ * per frame, so engines running in parallel never contend on the hot path.
+ * The MBean also controls the attached engines, setting their cycle budget
+ * and pause state live. Engines recording or replaying an input movie keep
+ * their cycle budget, since a movie is only valid with the budget it was
+ * recorded with.
+ */
+public class Metrics implements IMetricsMXBean {
+
+    // Name the MBean is registered under
+    public static final String OBJECT_NAME = "Emulator:type=Metrics";
+    // Upper bounds of the frame time histogram buckets in microseconds, last bucket is unbounded
+    private static final long[] FRAME_TIME_BUCKETS = {250, 500, 1000, 2000, 4000, 8000, 16667, 33333, Long.MAX_VALUE};
+    // Number of opcode classes, by the highest nibble
+    private static final int OPCODE_CLASSES = 16;
+
+    // Instance shared by all engines, null until first used
+    private static Metrics instance;
+
+    // Executed instructions per opcode class
+    private final LongAdder[] opcodeClasses = newAdders(OPCODE_CLASSES);
+    // Finished frames
+    private final LongAdder frames = new LongAdder();
+    // Executed sprite draws
+    private final LongAdder spriteDraws = new LongAdder();
+    // Sprite draws that erased a pixel
+    private final LongAdder spriteCollisions = new LongAdder();
+    // Time spent waiting for a key, in nanoseconds
+    private final LongAdder keyWaitTime = new LongAdder();
+    // Frames by their time
+    private final LongAdder[] frameTimes = newAdders(FRAME_TIME_BUCKETS.length);
+    // Engines controlled by the MBean
+    private final List<Engine> engines = new CopyOnWriteArrayList<>();
+
+    // Time of the last rate sample in nanoseconds
+    private long sampleTime = System.nanoTime();
+    // Instructions at the last rate sample
+    private long sampleInstructions;
+    // Frames at the last rate sample
+    private long sampleFrames;
+    // Instructions per second between last two samples
+    private double instructionsPerSecond;
+    // Frames per second between last two samples
+    private double framesPerSecond;
+
+    /**
+     * Counters of one engine, written only by its emulation thread.
+     */
+    static class Counters {
+        // Shared metrics the counters are added to
+        private final Metrics metrics;
+        // Executed instructions per opcode class
+        final long[] opcodeClasses = new long[OPCODE_CLASSES];
+        // Executed sprite draws
+        long spriteDraws;
+        // Sprite draws that erased a pixel
+        long spriteCollisions;
+        // Time the current key wait started in nanoseconds, 0 if not waiting
+        long keyWaitStart;
+        // Time the current frame started in nanoseconds
+        long frameStart = System.nanoTime();
+
+        /**
+         * Default constructor for the class.
+         *
+         * @param metrics Shared metrics the counters are added to
+         */
+        Counters(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Counts executed instruction.
+         *
+         * @param opcode Operation code of the instruction
+         */
+        void instruction(int opcode) {
+            opcodeClasses[opcode >>> 12]++;
+        }
+
+        /**
+         * Counts executed sprite draw.
+         *
+         * @param collision Collision indicator
+         */
+        void sprite(boolean collision) {
+            spriteDraws++;
+            if (collision) {
+                spriteCollisions++;
+            }
+        }
+
+        /**
+         * Tracks the state of the key wait.
+         *
+         * @param waiting <code>true</code> if the CPU waits for a key that is not pressed
+         */
+        void keyWait(boolean waiting) {
+            if (waiting) {
+                if (keyWaitStart == 0) {
+                    keyWaitStart = System.nanoTime();
+                }
+            } else if (keyWaitStart != 0) {
+                metrics.keyWaitTime.add(System.nanoTime() - keyWaitStart);
+                keyWaitStart = 0;
+            }
+        }
+
+        /**
+         * Adds counters of the finished frame to the shared metrics.
+         */
+        void endFrame() {
+            for (int i = 0; i < OPCODE_CLASSES; i++) {
+                if (opcodeClasses[i] != 0) {
+                    metrics.opcodeClasses[i].add(opcodeClasses[i]);
+                    opcodeClasses[i] = 0;
+                }
+            }
+            if (spriteDraws != 0) {
+                metrics.spriteDraws.add(spriteDraws);
+                metrics.spriteCollisions.add(spriteCollisions);
+                spriteDraws = 0;
+                spriteCollisions = 0;
+            }
+            long now = System.nanoTime();
+            metrics.frameTimes[bucket(now - frameStart)].increment();
+            metrics.frames.increment();
+            frameStart = now;
+        }
+
+        /**
+         * Restarts the frame time, after the engine slept between frames.
+         */
+        void startFrame() {
+            frameStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Creates the adders.
+     */
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Returns the bucket of the frame time.
+     */
+    private static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int i = 0;
+        while (micros > FRAME_TIME_BUCKETS[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the metrics shared by all engines, registering
+     * the MBean when called for the first time.
+     *
+     * @return Shared metrics
+     */
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                System.out.println("WARNING: Unable to register metrics MBean!");
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Attaches the engine, so it is controlled by the MBean.
+     *
+     * @param engine Engine to be attached
+     */
+    void attach(Engine engine) {
+        engines.add(engine);
+    }
+
+    /**
+     * Detaches the engine.
+     *
+     * @param engine Engine to be detached
+     */
+    void detach(Engine engine) {
+        engines.remove(engine);
+    }
+
+    /**
+     * Sums the adders.
+     */
+    private static long[] sum(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    /**
+     * Updates the rates, if at least a second passed since the last sample.
+     */
+    private synchronized void sampleRates() {
+        long now = System.nanoTime();
+        long elapsed = now - sampleTime;
+        if (elapsed < TimeUnit.SECONDS.toNanos(1)) {
+            return;
+        }
+        long instructions = getInstructions();
+        long frames = getFrames();
+        instructionsPerSecond = (instructions - sampleInstructions) * 1e9 / elapsed;
+        framesPerSecond = (frames - sampleFrames) * 1e9 / elapsed;
+        sampleTime = now;
+        sampleInstructions = instructions;
+        sampleFrames = frames;
+    }
+
+    @Override
+    public long getInstructions() {
+        long instructions = 0;
+        for (LongAdder adder : opcodeClasses) {
+            instructions += adder.sum();
+        }
+        return instructions;
+    }
+
+    @Override
+    public long[] getOpcodeClassCounts() {
+        return sum(opcodeClasses);
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        sampleRates();
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    @Override
+    public double getFramesPerSecond() {
+        sampleRates();
+        return framesPerSecond;
+    }
+
+    @Override
+    public long getSpriteDraws() {
+        return spriteDraws.sum();
+    }
+
+    @Override
+    public long getSpriteCollisions() {
+        return spriteCollisions.sum();
+    }
+
+    @Override
+    public long getKeyWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(keyWaitTime.sum());
+    }
+
+    @Override
+    public long[] getFrameTimeBucketsMicros() {
+        return FRAME_TIME_BUCKETS.clone();
+    }
+
+    @Override
+    public long[] getFrameTimeHistogram() {
+        return sum(frameTimes);
+    }
+
+    @Override
+    public int getEngineCount() {
+        return engines.size();
+    }
+
+    /**
+     * @return Number of commands per frame of the attached engines,
+     *         0 if there are none, -1 if they differ
+     */
+    @Override
+    public int getCyclesPerFrame() {
+        int cyclesPerFrame = 0;
+        for (Engine engine : engines) {
+            int current = engine.getCyclesPerFrame();
+            if (cyclesPerFrame != 0 && current != cyclesPerFrame) {
+                return -1;
+            }
+            cyclesPerFrame = current;
+        }
+        return cyclesPerFrame;
+    }
+
+    /**
+     * Sets number of commands per frame of the attached engines,
+     * except the ones recording or replaying an input movie.
+     *
+     * @param cyclesPerFrame New number of commands per frame
+     */
+    @Override
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        if (cyclesPerFrame <= 0) {
+            throw new IllegalArgumentException("Invalid number of commands per frame " + cyclesPerFrame);
+        }
+        for (Engine engine : engines) {
+            if (!engine.isRecordingOrReplaying()) {
+                engine.setCyclesPerFrame(cyclesPerFrame);
+            }
+        }
+    }
+
+    @Override
+    public boolean isPaused() {
+        for (Engine engine : engines) {
+            if (!engine.isPaused()) {
+                return false;
+            }
+        }
+        return !engines.isEmpty();
+    }
+
+    @Override
+    public void setPaused(boolean paused) {
+        for (Engine engine : engines) {
+            engine.setPaused(paused);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : opcodeClasses) {
+            adder.reset();
+        }
+        for (LongAdder adder : frameTimes) {
+            adder.reset();
+        }
+        frames.reset();
+        spriteDraws.reset();
+        spriteCollisions.reset();
+        keyWaitTime.reset();
+        synchronized (this) {
+            sampleTime = System.nanoTime();
+            sampleInstructions = 0;
+            sampleFrames = 0;
+        }
+    }
+
+    /**
+     * Prints the metrics.
+     */
+    public void printReport() {
+        long[] classes = getOpcodeClassCounts();
+        StringBuilder opcodes = new StringBuilder();
+        for (int i = 0; i < classes.length; i++) {
+            opcodes.append(String.format(" %Xxxx=%d", i, classes[i]));
+        }
+        System.out.println(String.format("Instructions: %d Frames: %d Sprites: %d Collisions: %d Key wait: %d ms",
+                getInstructions(), getFrames(), getSpriteDraws(), getSpriteCollisions(), getKeyWaitMillis()));
+        System.out.println("Opcode classes:" + opcodes);
+        long[] histogram = getFrameTimeHistogram();
+        StringBuilder times = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            String bound = FRAME_TIME_BUCKETS[i] == Long.MAX_VALUE ? "inf" : FRAME_TIME_BUCKETS[i] + "us";
+            times.append(String.format(" <=%s=%d", bound, histogram[i]));
+        }
+        System.out.println("Frame times:" + times);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+/**
+ * Table of all 65536 possible opcodes decoded in advance.
+ *
+ * Each entry holds the id of the handler in bits 24-31,
+ * first register in bits 20-23, second register in bits 16-19
+ * and the operand (address, byte value or nibble) in bits 0-11.
+ */
+final class OpcodeTable {
+
+    // Handler ids
+    static final int INVALID = 0;
+    static final int CLS = 1;
+    static final int RET = 2;
+    static final int JP = 3;
+    static final int CALL = 4;
+    static final int SE_VAL = 5;
+    static final int SNE_VAL = 6;
+    static final int SE_REG = 7;
+    static final int LD_VAL = 8;
+    static final int ADD_VAL = 9;
+    static final int LD_REG = 10;
+    static final int OR = 11;
+    static final int AND = 12;
+    static final int XOR = 13;
+    static final int ADD_REG = 14;
+    static final int SUB = 15;
+    static final int SHR = 16;
+    static final int SUBN = 17;
+    static final int SHL = 18;
+    static final int SNE_REG = 19;
+    static final int LD_I = 20;
+    static final int JP_V0 = 21;
+    static final int RND = 22;
+    static final int DRW = 23;
+    static final int SKP = 24;
+    static final int SKNP = 25;
+    static final int LD_DT = 26;
+    static final int LD_KEY = 27;
+    static final int SET_DT = 28;
+    static final int SET_ST = 29;
+    static final int ADD_I = 30;
+    static final int LD_F = 31;
+    static final int LD_B = 32;
+    static final int STORE = 33;
+    static final int READ = 34;
+
+    // Decoded entries indexed by opcode
+    static final int[] ENTRIES = new int[0x10000];
+
+    static {
+        for (int opcode = 0; opcode < ENTRIES.length; opcode++) {
+            ENTRIES[opcode] = decode(opcode);
+        }
+    }
+
+    private OpcodeTable() {
+    }
+
+    /**
+     * Decodes single opcode into the table entry.
+     *
+     * @param opcode Operation code to be decoded
+     * @return Table entry for the opcode
+     */
+    private static int decode(int opcode) {
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        int nnn = opcode & 0x0FFF;
+        int kk = opcode & 0x00FF;
+        int n = opcode & 0x000F;
+
+        switch ((opcode & 0xF000) >> 12) {
+            case 0x0:
+                switch (kk) {
+                    case 0xE0:
+                        return entry(CLS, 0, 0, 0);
+                    case 0xEE:
+                        return entry(RET, 0, 0, 0);
+                    default:
+                        return entry(INVALID, 0, 0, 0);
+                }
+            case 0x1:
+                return entry(JP, 0, 0, nnn);
+            case 0x2:
+                return entry(CALL, 0, 0, nnn);
+            case 0x3:
+                return entry(SE_VAL, x, 0, kk);
+            case 0x4:
+                return entry(SNE_VAL, x, 0, kk);
+            case 0x5:
+                return entry(SE_REG, x, y, 0);
+            case 0x6:
+                return entry(LD_VAL, x, 0, kk);
+            case 0x7:
+                return entry(ADD_VAL, x, 0, kk);
+            case 0x8:
+                switch (n) {
+                    case 0x0:
+                        return entry(LD_REG, x, y, 0);
+                    case 0x1:
+                        return entry(OR, x, y, 0);
+                    case 0x2:
+                        return entry(AND, x, y, 0);
+                    case 0x3:
+                        return entry(XOR, x, y, 0);
+                    case 0x4:
+                        return entry(ADD_REG, x, y, 0);
+                    case 0x5:
+                        return entry(SUB, x, y, 0);
+                    case 0x6:
+                        return entry(SHR, x, y, 0);
+                    case 0x7:
+                        return entry(SUBN, x, y, 0);
+                    case 0xE:
+                        return entry(SHL, x, y, 0);
+                    default:
+                        return entry(INVALID, 0, 0, 0);
+                }
+            case 0x9:
+                return entry(SNE_REG, x, y, 0);
+            case 0xA:
+                return entry(LD_I, 0, 0, nnn);
+            case 0xB:
+                return entry(JP_V0, 0, 0, nnn);
+            case 0xC:
+                return entry(RND, x, 0, kk);
+            case 0xD:
+                return entry(DRW, x, y, n);
+            case 0xE:
+                switch (kk) {
+                    case 0x9E:
+                        return entry(SKP, x, 0, 0);
+                    case 0xA1:
+                        return entry(SKNP, x, 0, 0);
+                    default:
+                        return entry(INVALID, 0, 0, 0);
+                }
+            default:
+                switch (kk) {
+                    case 0x07:
+                        return entry(LD_DT, x, 0, 0);
+                    case 0x0A:
+                        return entry(LD_KEY, x, 0, 0);
+                    case 0x15:
+                        return entry(SET_DT, x, 0, 0);
+                    case 0x18:
+                        return entry(SET_ST, x, 0, 0);
+                    case 0x1E:
+                        return entry(ADD_I, x, 0, 0);
+                    case 0x29:
+                        return entry(LD_F, x, 0, 0);
+                    case 0x33:
+                        return entry(LD_B, x, 0, 0);
+                    case 0x55:
+                        return entry(STORE, x, 0, 0);
+                    case 0x65:
+                        return entry(READ, x, 0, 0);
+                    default:
+                        return entry(INVALID, 0, 0, 0);
+                }
+        }
+    }
+
+    /**
+     * Packs decoded fields into the table entry.
+     */
+    private static int entry(int handler, int x, int y, int operand) {
+        return (handler << 24) | (x << 20) | (y << 16) | operand;
+    }
+
+    /**
+     * @param entry Table entry
+     * @return Handler id of the entry
+     */
+    static int handler(int entry) {
+        return entry >>> 24;
+    }
+
+    /**
+     * @param entry Table entry
+     * @return First register of the entry
+     */
+    static int x(int entry) {
+        return (entry >> 20) & 0xF;
+    }
+
+    /**
+     * @param entry Table entry
+     * @return Second register of the entry
+     */
+    static int y(int entry) {
+        return (entry >> 16) & 0xF;
+    }
+
+    /**
+     * @param entry Table entry
+     * @return Address, byte value or nibble operand of the entry
+     */
+    static int operand(int entry) {
+        return entry & 0x0FFF;
+    }
+}
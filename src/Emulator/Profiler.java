@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import Disassembler.Disassembler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hot-spot and subroutine profiler of the executed program.
+ *
+ * Every executed instruction increments the counter of its address and
+ * the cycles of the current call stack. Calls and returns maintain a
+ * shadow call stack, from which inclusive and exclusive cycles of every
+ * subroutine are derived. One instruction is counted as one cycle.
+ * Call stacks are interned as paths, so the hot path is a few array
+ * increments and the maps are touched only on calls.
+ */
+public class Profiler {
+
+    // Maximum depth of the shadow call stack, deeper calls are not tracked
+    private static final int MAX_DEPTH = 256;
+    // Number of entries printed in the report
+    private static final int REPORT_SIZE = 10;
+    // Initial number of distinct call stacks the arrays can hold
+    private static final int INITIAL_PATHS = 64;
+
+    // Memory the program is read from
+    private Memory memory;
+    // Name of the root frame in the collapsed stacks
+    private String name;
+
+    // Executions of every address
+    private final long[] counts = new long[Memory.MEMORY_SIZE];
+    // Calls of every subroutine, indexed by its address
+    private final long[] calls = new long[Memory.MEMORY_SIZE];
+    // Cycles spent in every subroutine, including called ones
+    private final long[] inclusive = new long[Memory.MEMORY_SIZE];
+    // Cycles spent in every subroutine itself
+    private final long[] exclusive = new long[Memory.MEMORY_SIZE];
+    // Number of frames of every subroutine currently on the stack
+    private final int[] active = new int[Memory.MEMORY_SIZE];
+    // Total number of profiled cycles
+    private long cycles;
+
+    // Subroutines on the shadow call stack
+    private final int[] stackTargets = new int[MAX_DEPTH];
+    // Cycle every frame on the stack was entered at
+    private final long[] stackCycles = new long[MAX_DEPTH];
+    // Path of every frame on the stack
+    private final int[] stackPaths = new int[MAX_DEPTH];
+    // Number of frames on the stack
+    private int depth;
+    // Number of calls deeper than the tracked stack, not returned yet
+    private int overflow;
+
+    // Parent path of every path, -1 for the root
+    private int[] pathParents = new int[INITIAL_PATHS];
+    // Subroutine of every path
+    private int[] pathTargets = new int[INITIAL_PATHS];
+    // Cycles spent with every path on top of the stack
+    private long[] pathCycles = new long[INITIAL_PATHS];
+    // Paths by parent path and subroutine
+    private Map<Long, Integer> paths = new HashMap<>();
+    // Number of paths, the root being path 0
+    private int pathCount = 1;
+    // Path of the current call stack
+    private int path;
+
+    /**
+     * Default constructor for the class.
+     *
+     * @param memory Memory the program is read from
+     * @param name Name of the root frame, usually the ROM name
+     */
+    public Profiler(Memory memory, String name) {
+        this.memory = memory;
+        this.name = name;
+        pathParents[0] = -1;
+    }
+
+    /**
+     * Counts the instruction about to be executed.
+     *
+     * @param pc Address of the instruction
+     */
+    void record(int pc) {
+        counts[pc & (Memory.MEMORY_SIZE - 1)]++;
+        pathCycles[path]++;
+        if (depth > 0) {
+            exclusive[stackTargets[depth - 1]]++;
+        }
+        cycles++;
+    }
+
+    /**
+     * Pushes the called subroutine to the shadow call stack.
+     *
+     * @param target Address of the subroutine
+     */
+    void call(int target) {
+        target &= Memory.MEMORY_SIZE - 1;
+        calls[target]++;
+        if (depth == MAX_DEPTH) {
+            overflow++;
+            return;
+        }
+        long key = ((long) path << 12) | target;
+        Integer child = paths.get(key);
+        if (child == null) {
+            child = addPath(path, target);
+            paths.put(key, child);
+        }
+        stackTargets[depth] = target;
+        stackCycles[depth] = cycles;
+        stackPaths[depth] = path;
+        active[target]++;
+        depth++;
+        path = child;
+    }
+
+    /**
+     * Pops the returning subroutine from the shadow call stack.
+     * Returns without a matching call are ignored.
+     */
+    void ret() {
+        if (overflow > 0) {
+            overflow--;
+            return;
+        }
+        if (depth == 0) {
+            return;
+        }
+        depth--;
+        int target = stackTargets[depth];
+        // Recursive frames are counted once, by the outermost one
+        if (--active[target] == 0) {
+            inclusive[target] += cycles - stackCycles[depth];
+        }
+        path = stackPaths[depth];
+    }
+
+    /**
+     * Adds a new call stack.
+     */
+    private int addPath(int parent, int target) {
+        if (pathCount == pathCycles.length) {
+            pathParents = Arrays.copyOf(pathParents, pathCount * 2);
+            pathTargets = Arrays.copyOf(pathTargets, pathCount * 2);
+            pathCycles = Arrays.copyOf(pathCycles, pathCount * 2);
+        }
+        pathParents[pathCount] = parent;
+        pathTargets[pathCount] = target;
+        return pathCount++;
+    }
+
+    /**
+     * @param address Memory address
+     * @return Number of times the instruction at the address was executed
+     */
+    public long getCount(int address) {
+        return counts[address & (Memory.MEMORY_SIZE - 1)];
+    }
+
+    /**
+     * @param target Address of the subroutine
+     * @return Cycles spent in the subroutine, including called ones
+     */
+    public long getInclusiveCycles(int target) {
+        target &= Memory.MEMORY_SIZE - 1;
+        long cycles = inclusive[target];
+        // Frames still on the stack count up to now
+        for (int i = 0; i < depth; i++) {
+            if (stackTargets[i] == target) {
+                return cycles + this.cycles - stackCycles[i];
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * @param target Address of the subroutine
+     * @return Cycles spent in the subroutine itself
+     */
+    public long getExclusiveCycles(int target) {
+        return exclusive[target & (Memory.MEMORY_SIZE - 1)];
+    }
+
+    /**
+     * @return Total number of profiled cycles
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Formats the subroutine as a frame name.
+     */
+    private static String frameName(int target) {
+        return String.format("sub_%03X", target);
+    }
+
+    /**
+     * Writes the profile in collapsed stack format, one line per call stack
+     * with frames separated by semicolons and the number of cycles spent
+     * in it, as read by flame graph tools.
+     *
+     * @param file Destination file
+     * @throws IOException if the file can not be written
+     */
+    public void writeCollapsed(File file) throws IOException {
+        String[] names = new String[pathCount];
+        names[0] = name;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            // Parents are always added before their children
+            for (int i = 0; i < pathCount; i++) {
+                if (i > 0) {
+                    names[i] = names[pathParents[i]] + ";" + frameName(pathTargets[i]);
+                }
+                if (pathCycles[i] > 0) {
+                    out.write(names[i] + " " + pathCycles[i]);
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints the hottest instructions and subroutines.
+     */
+    public void printReport() {
+        System.out.println(String.format("Profiled cycles: %d", cycles));
+
+        List<Integer> addresses = new ArrayList<>();
+        List<Integer> targets = new ArrayList<>();
+        for (int i = 0; i < Memory.MEMORY_SIZE; i++) {
+            if (counts[i] > 0) {
+                addresses.add(i);
+            }
+            if (calls[i] > 0) {
+                targets.add(i);
+            }
+        }
+        Collections.sort(addresses, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(counts[b], counts[a]);
+            }
+        });
+        Collections.sort(targets, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(getInclusiveCycles(b), getInclusiveCycles(a));
+            }
+        });
+
+        System.out.println("Hottest instructions:");
+        for (int address : addresses.subList(0, Math.min(REPORT_SIZE, addresses.size()))) {
+            int opcode = (memory.getByte(address) & 0xFF) << 8 | (memory.getByte(address + 1) & 0xFF);
+            System.out.println(String.format("  0x%03X: %04X  %-16s %10d %6.2f%%", address, opcode,
+                    Disassembler.decode(opcode), counts[address], percent(counts[address])));
+        }
+        System.out.println("Subroutines:      calls  inclusive           exclusive");
+        for (int target : targets.subList(0, Math.min(REPORT_SIZE, targets.size()))) {
+            long total = getInclusiveCycles(target);
+            System.out.println(String.format("  %s %10d %10d %6.2f%% %10d %6.2f%%", frameName(target),
+                    calls[target], total, percent(total), exclusive[target], percent(exclusive[target])));
+        }
+    }
+
+    /**
+     * Share of the cycles in percents.
+     */
+    private double percent(long value) {
+        return cycles == 0 ? 0 : value * 100.0 / cycles;
+    }
+}
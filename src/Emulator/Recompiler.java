@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates hot blocks of CHIP-8 instructions to JVM bytecode.
+ *
+ * Every instruction of the block becomes a call of the matching CPU method
+ * with operands as constants, so the JIT can inline the whole block without
+ * any dispatch. Generated classes are defined as hidden classes when the JVM
+ * supports them, otherwise through their own class loader, and are dropped
+ * together with the block when its code is modified.
+ */
+class Recompiler {
+
+    // Number of executions after which the block is compiled
+    static final int HOT_THRESHOLD = 256;
+
+    // Class file constants
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+    private static final int CLASS_VERSION = 51;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Bytecode instructions
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int RETURN = 0xB1;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+
+    // Internal names of used classes
+    private static final String CPU_CLASS = "Emulator/Cpu";
+    private static final String OBJECT_CLASS = "java/lang/Object";
+    private static final String BLOCK_INTERFACE = "Emulator/CompiledBlock";
+
+    // Number of generated classes, used for unique names
+    private static int classCount;
+
+    // Lookup used to define hidden classes, null if not supported
+    private Object lookup;
+    // Method defining hidden classes, null if not supported
+    private Method defineHiddenClass;
+    // Empty array of hidden class options
+    private Object hiddenClassOptions;
+
+    /**
+     * Default constructor for the class.
+     */
+    Recompiler() {
+        try {
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            hiddenClassOptions = Array.newInstance(optionClass, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, hiddenClassOptions.getClass());
+            lookup = MethodHandles.lookup();
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            defineHiddenClass = null;
+            lookup = null;
+        }
+    }
+
+    /**
+     * Checks if the block can be compiled.
+     *
+     * @param block Block of decoded instructions
+     * @return <code>true</code> if all instructions of the block are supported
+     */
+    static boolean canCompile(BlockCache.Block block) {
+        for (int entry : block.entries) {
+            if (OpcodeTable.handler(entry) == OpcodeTable.INVALID) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Translates the block to JVM bytecode and loads it.
+     *
+     * @param block Block of decoded instructions
+     * @return Loaded block ready for execution
+     */
+    CompiledBlock compile(BlockCache.Block block) {
+        String name;
+        synchronized (Recompiler.class) {
+            name = "Emulator/CompiledBlock$" + Integer.toHexString(block.start) + "$" + (classCount++);
+        }
+        byte[] bytes = generateClass(name, block);
+
+        try {
+            Class<?> clazz;
+            if (defineHiddenClass != null) {
+                Object hiddenLookup = defineHiddenClass.invoke(lookup, bytes, true, hiddenClassOptions);
+                clazz = ((MethodHandles.Lookup) hiddenLookup).lookupClass();
+            } else {
+                clazz = new BlockClassLoader(Cpu.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+            }
+            return (CompiledBlock) clazz.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load compiled block at " + block.start, e);
+        }
+    }
+
+    /**
+     * Generates class file implementing <code>CompiledBlock</code> for the block.
+     *
+     * @param name Internal name of the generated class
+     * @param block Block of decoded instructions
+     * @return Content of the class file
+     */
+    private byte[] generateClass(String name, BlockCache.Block block) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef(OBJECT_CLASS);
+        int blockInterface = pool.classRef(BLOCK_INTERFACE);
+        int codeName = pool.utf8("Code");
+
+        // Constructor only calls constructor of Object
+        ByteArrayOutputStream init = new ByteArrayOutputStream();
+        init.write(ALOAD_0);
+        writeInstruction(init, INVOKESPECIAL, pool.methodRef(OBJECT_CLASS, "<init>", "()V"));
+        init.write(RETURN);
+
+        // Sets program counter past the block, then calls CPU method for every instruction
+        ByteArrayOutputStream execute = new ByteArrayOutputStream();
+        execute.write(ALOAD_1);
+        pushInt(execute, block.end);
+        writeInstruction(execute, INVOKEVIRTUAL, pool.methodRef(CPU_CLASS, "jumpToAddress", "(I)V"));
+        for (int entry : block.entries) {
+            generateInstruction(execute, pool, entry);
+        }
+        execute.write(RETURN);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(CLASS_MAGIC);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            int initName = pool.utf8("<init>");
+            int initType = pool.utf8("()V");
+            int executeName = pool.utf8("execute");
+            int executeType = pool.utf8("(LEmulator/Cpu;)V");
+            pool.write(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(blockInterface);
+            out.writeShort(0);
+            out.writeShort(2);
+            writeMethod(out, initName, initType, codeName, 1, 1, init.toByteArray());
+            writeMethod(out, executeName, executeType, codeName, 4, 2, execute.toByteArray());
+            out.writeShort(0);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to generate compiled block", e);
+        }
+    }
+
+    /**
+     * Generates call of the CPU method executing one instruction.
+     *
+     * @param code Bytecode of the method
+     * @param pool Constant pool of the class
+     * @param entry Opcode table entry of the instruction
+     */
+    private void generateInstruction(ByteArrayOutputStream code, ConstantPool pool, int entry) {
+        int x = OpcodeTable.x(entry);
+        int y = OpcodeTable.y(entry);
+        int operand = OpcodeTable.operand(entry);
+
+        switch (OpcodeTable.handler(entry)) {
+            case OpcodeTable.CLS:
+                generateCall(code, pool, "clearScreen");
+                break;
+            case OpcodeTable.RET:
+                generateCall(code, pool, "returnFromSubrutine");
+                break;
+            case OpcodeTable.JP:
+                generateCall(code, pool, "jumpToAddress", operand);
+                break;
+            case OpcodeTable.CALL:
+                generateCall(code, pool, "callSubroutine", operand);
+                break;
+            case OpcodeTable.SE_VAL:
+                generateCall(code, pool, "skipIfRegisterEqualValue", x, operand);
+                break;
+            case OpcodeTable.SNE_VAL:
+                generateCall(code, pool, "skipIfRegisterNotEqualValue", x, operand);
+                break;
+            case OpcodeTable.SE_REG:
+                generateCall(code, pool, "skipIfRegisterEqualRegister", x, y);
+                break;
+            case OpcodeTable.LD_VAL:
+                generateCall(code, pool, "setRegisterToValue", x, operand);
+                break;
+            case OpcodeTable.ADD_VAL:
+                generateCall(code, pool, "addValueToRegister", x, operand);
+                break;
+            case OpcodeTable.LD_REG:
+                generateCall(code, pool, "registerMove", x, y);
+                break;
+            case OpcodeTable.OR:
+                generateCall(code, pool, "registerOr", x, y);
+                break;
+            case OpcodeTable.AND:
+                generateCall(code, pool, "registerAnd", x, y);
+                break;
+            case OpcodeTable.XOR:
+                generateCall(code, pool, "registerXor", x, y);
+                break;
+            case OpcodeTable.ADD_REG:
+                generateCall(code, pool, "registerAdd", x, y);
+                break;
+            case OpcodeTable.SUB:
+                generateCall(code, pool, "registerSubN", x, y);
+                break;
+            case OpcodeTable.SHR:
+                generateCall(code, pool, "registerShiftRight", x);
+                break;
+            case OpcodeTable.SUBN:
+                generateCall(code, pool, "registerSub", x, y);
+                break;
+            case OpcodeTable.SHL:
+                generateCall(code, pool, "registerShiftLeft", x);
+                break;
+            case OpcodeTable.SNE_REG:
+                generateCall(code, pool, "skipIfRegisterNotEqualRegister", x, y);
+                break;
+            case OpcodeTable.LD_I:
+                generateCall(code, pool, "setIToAddress", operand);
+                break;
+            case OpcodeTable.JP_V0:
+                generateCall(code, pool, "jumpToAddressPlusV0", operand);
+                break;
+            case OpcodeTable.RND:
+                generateCall(code, pool, "setRegisterToRandomValue", x, operand);
+                break;
+            case OpcodeTable.DRW:
+                generateCall(code, pool, "drawSprite", x, y, operand);
+                break;
+            case OpcodeTable.SKP:
+                generateCall(code, pool, "skipIfKeyPressed", x);
+                break;
+            case OpcodeTable.SKNP:
+                generateCall(code, pool, "skipIfKeyNotPressed", x);
+                break;
+            case OpcodeTable.LD_DT:
+                generateCall(code, pool, "setRegisterToDelayTimer", x);
+                break;
+            case OpcodeTable.LD_KEY:
+                generateCall(code, pool, "waitForKey", x);
+                break;
+            case OpcodeTable.SET_DT:
+                generateCall(code, pool, "setDelayTimer", x);
+                break;
+            case OpcodeTable.SET_ST:
+                generateCall(code, pool, "setSoundTimer", x);
+                break;
+            case OpcodeTable.ADD_I:
+                generateCall(code, pool, "addRegisterToI", x);
+                break;
+            case OpcodeTable.LD_F:
+                generateCall(code, pool, "loadIWithSprite", x);
+                break;
+            case OpcodeTable.LD_B:
+                generateCall(code, pool, "storeDecimalInMemory", x);
+                break;
+            case OpcodeTable.STORE:
+                generateCall(code, pool, "storeRegistersInMemory", x);
+                break;
+            case OpcodeTable.READ:
+                generateCall(code, pool, "storeMemoryToRegisters", x);
+                break;
+            default:
+                throw new IllegalArgumentException("Unable to compile handler " + OpcodeTable.handler(entry));
+        }
+    }
+
+    /**
+     * Generates call of the CPU method with constant int arguments.
+     *
+     * @param code Bytecode of the method
+     * @param pool Constant pool of the class
+     * @param method Name of the CPU method
+     * @param args Arguments of the call
+     */
+    private void generateCall(ByteArrayOutputStream code, ConstantPool pool, String method, int... args) {
+        StringBuilder descriptor = new StringBuilder("(");
+        code.write(ALOAD_1);
+        for (int arg : args) {
+            pushInt(code, arg);
+            descriptor.append('I');
+        }
+        descriptor.append(")V");
+        writeInstruction(code, INVOKEVIRTUAL, pool.methodRef(CPU_CLASS, method, descriptor.toString()));
+    }
+
+    /**
+     * Generates instruction pushing int constant to the stack.
+     *
+     * @param code Bytecode of the method
+     * @param value Value to be pushed
+     */
+    private void pushInt(ByteArrayOutputStream code, int value) {
+        if (value >= 0 && value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else {
+            writeInstruction(code, SIPUSH, value);
+        }
+    }
+
+    /**
+     * Writes instruction with two byte operand.
+     *
+     * @param code Bytecode of the method
+     * @param instruction Instruction to be written
+     * @param operand Operand of the instruction
+     */
+    private void writeInstruction(ByteArrayOutputStream code, int instruction, int operand) {
+        code.write(instruction);
+        code.write(operand >> 8);
+        code.write(operand);
+    }
+
+    /**
+     * Writes public method with code attribute to the class file.
+     */
+    private void writeMethod(DataOutputStream out, int name, int descriptor, int codeName,
+                             int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    /**
+     * Constant pool of the generated class.
+     */
+    private static class ConstantPool {
+        // Entries in order, each entry starts with its tag
+        private List<Object[]> entries = new ArrayList<>();
+        // Indexes of already added entries
+        private Map<String, Integer> indexes = new HashMap<>();
+
+        int utf8(String value) {
+            return add("U" + value, CONSTANT_UTF8, value);
+        }
+
+        int classRef(String name) {
+            return add("C" + name, CONSTANT_CLASS, utf8(name));
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int classIndex = classRef(owner);
+            int nameAndType = add("N" + name + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+            return add("M" + owner + "." + name + descriptor, CONSTANT_METHOD_REF, classIndex, nameAndType);
+        }
+
+        private int add(String key, Object... entry) {
+            Integer index = indexes.get(key);
+            if (index == null) {
+                entries.add(entry);
+                index = entries.size();
+                indexes.put(key, index);
+            }
+            return index;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(entries.size() + 1);
+            for (Object[] entry : entries) {
+                int tag = (Integer) entry[0];
+                out.writeByte(tag);
+                if (tag == CONSTANT_UTF8) {
+                    out.writeUTF((String) entry[1]);
+                } else {
+                    for (int i = 1; i < entry.length; i++) {
+                        out.writeShort((Integer) entry[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Class loader defining compiled blocks on JVMs without hidden classes.
+     */
+    private static class BlockClassLoader extends ClassLoader {
+
+        BlockClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -7,10 +7,26 @@ package Emulator;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Emulates screen of CHIP-8.
  *
+ * Pixels are kept packed, one bit per pixel in 64-bit words,
+ * leftmost pixel of a word in the most significant bit.
+ * The scaled image is drawn from them only when the screen is presented.
+ * It is indexed, 0 for pixels turned off and 1 for pixels turned on,
+ * so changing colors only swaps the palette.
+ *
+ * The emulation thread publishes finished frames into a lock-free triple
+ * buffer: it always owns one buffer to copy into, the renderer owns one to
+ * draw from, and the third one is exchanged through a single atomic integer.
+ * Neither side ever waits, and the renderer only ever sees complete frames.
+ *
  * Created by random on 16.08.2016.
  */
 public class Screen implements IScreen {
@@ -25,6 +41,10 @@ public class Screen implements IScreen {
     private static final Color DEFAULT_COLOR_ON = Color.white;
     // Default color for pixels turned off
     private static final Color DEFAULT_COLOR_OFF = Color.black;
+    // Flag of the exchanged buffer set when it holds a frame not yet drawn
+    private static final int FRESH = 4;
+    // Mask of the exchanged buffer index
+    private static final int INDEX_MASK = 3;
 
     // Scale factor of the screen
     private int scale;
@@ -36,8 +56,28 @@ public class Screen implements IScreen {
     private Color colorOn;
     // Color of pixels turned off
     private Color colorOff;
-    // Emulator.Screen image information
-    private BufferedImage image;
+    // Number of 64-bit words in a row
+    private int rowWords;
+    // Packed pixels, row after row
+    private long[] pixels;
+    // Published frames, handed from the emulation thread to the renderer
+    private long[][] frames;
+    // Index of the exchanged frame, with FRESH flag if it was not drawn yet
+    private AtomicInteger exchanged = new AtomicInteger(0);
+    // Index of the frame the emulation thread publishes into
+    private int publishIndex = 1;
+    // Index of the frame the renderer draws from
+    private int renderIndex = 2;
+    // Packed pixels as last drawn to the image, owned by the renderer
+    private long[] drawn;
+    // Indicator that the image has to be drawn completely
+    private boolean drawAll = true;
+    // Emulator.Screen image information, drawn from the packed pixels
+    private volatile BufferedImage image;
+    // Palette indexes of 8 scaled pixels for every byte of packed pixels
+    private byte[] scaleTable;
+    // One scaled row of palette indexes, owned by the renderer
+    private byte[] scaledRow;
 
     /**
      * Main constructor. If any value is wrong default value will be applied.
@@ -58,7 +98,42 @@ public class Screen implements IScreen {
         this.colorOn = colorOn == null ? DEFAULT_COLOR_ON : colorOn;
         this.colorOff = colorOff == null ? DEFAULT_COLOR_OFF : colorOff;
 
-        image = new BufferedImage(width * scale, height * scale, BufferedImage.TYPE_4BYTE_ABGR);
+        rowWords = (this.width + 63) >>> 6;
+        pixels = new long[this.height * rowWords];
+        frames = new long[3][pixels.length];
+        drawn = new long[pixels.length];
+        image = new BufferedImage(this.width * this.scale, this.height * this.scale,
+                BufferedImage.TYPE_BYTE_INDEXED, createPalette());
+
+        scaleTable = new byte[256 * 8 * this.scale];
+        for (int bits = 0; bits < 256; bits++) {
+            for (int i = 0; i < 8 * this.scale; i++) {
+                scaleTable[bits * 8 * this.scale + i] = (byte) ((bits >>> (7 - i / this.scale)) & 1);
+            }
+        }
+        scaledRow = new byte[((this.width + 7) >>> 3) * 8 * this.scale];
+    }
+
+    /**
+     * @return Palette with color of pixels turned off at index 0 and turned on at index 1
+     */
+    private IndexColorModel createPalette() {
+        byte[] red = {(byte) colorOff.getRed(), (byte) colorOn.getRed()};
+        byte[] green = {(byte) colorOff.getGreen(), (byte) colorOn.getGreen()};
+        byte[] blue = {(byte) colorOff.getBlue(), (byte) colorOn.getBlue()};
+        return new IndexColorModel(8, 2, red, green, blue);
+    }
+
+    /**
+     * Changes colors of the screen. Only the palette of the image is
+     * swapped, pixels are not drawn again.
+     *
+     * @param type Type of the screen
+     */
+    public void setScreenType(ScreenType type) {
+        colorOn = type.getColorOn();
+        colorOff = type.getColorOff();
+        image = new BufferedImage(createPalette(), image.getRaster(), false, null);
     }
 
     /**
@@ -76,10 +151,16 @@ public class Screen implements IScreen {
      * Clears the screen
      */
     public void clearScreen() {
-        Graphics2D graphics2D = image.createGraphics();
-        graphics2D.setColor(colorOff);
-        graphics2D.fillRect(0, 0, width * scale, height * scale);
-        graphics2D.dispose();
+        Arrays.fill(pixels, 0);
+    }
+
+    /**
+     * Publishes current pixels as a finished frame for the renderer.
+     * Called by the emulation thread, never blocks.
+     */
+    public void publish() {
+        System.arraycopy(pixels, 0, frames[publishIndex], 0, pixels.length);
+        publishIndex = exchanged.getAndSet(publishIndex | FRESH) & INDEX_MASK;
     }
 
     /**
@@ -91,11 +172,43 @@ public class Screen implements IScreen {
      *           otherwise it is turned off
      */
     public void markPixel(int x, int y, boolean on) {
-        Graphics2D graphics2D = image.createGraphics();
-        Color color = on ? colorOn : colorOff;
-        graphics2D.setColor(color);
-        graphics2D.fillRect(x * scale, y * scale, scale, scale);
-        graphics2D.dispose();
+        int index = y * rowWords + (x >>> 6);
+        long bit = 1L << (63 - (x & 63));
+        if (on) {
+            pixels[index] |= bit;
+        } else {
+            pixels[index] &= ~bit;
+        }
+    }
+
+    /**
+     * XORs one 8-pixel row of a sprite into the screen, wrapping around
+     * the right edge. On a 64 pixels wide screen the row is placed with
+     * a single rotate, so the whole row costs one XOR.
+     *
+     * @param x The x coordinate of the leftmost pixel, must be less than width
+     * @param y The y coordinate of the row, must be less than height
+     * @param bits Pixels of the sprite row, leftmost pixel in bit 7
+     * @return <code>true</code> if any pixel was turned off
+     */
+    public boolean drawSpriteRow(int x, int y, int bits) {
+        if (width == 64) {
+            long row = Long.rotateRight((long) (bits & 0xFF) << 56, x);
+            long old = pixels[y];
+            pixels[y] = old ^ row;
+            return (old & row) != 0;
+        }
+
+        boolean collision = false;
+        for (int i = 0; i < 8; i++) {
+            if ((bits & (0x80 >>> i)) != 0) {
+                int column = (x + i) % width;
+                boolean on = isPixelOn(column, y);
+                collision |= on;
+                markPixel(column, y, !on);
+            }
+        }
+        return collision;
     }
 
     /**
@@ -120,12 +233,121 @@ public class Screen implements IScreen {
     }
 
     /**
-     * @return The BufferedImage of the screen
+     * @return The BufferedImage of the screen, as drawn by the last <code>render</code>
+     *         or <code>renderDirty</code>
      */
     public BufferedImage getImage() {
         return this.image;
     }
 
+    /**
+     * Draws the last published frame completely to the scaled image.
+     *
+     * @return The BufferedImage of the screen
+     */
+    public BufferedImage render() {
+        drawAll = true;
+        renderDirty();
+        return image;
+    }
+
+    /**
+     * Takes the last published frame and draws the rows that differ from
+     * the last drawn frame to the scaled image. Every byte of packed pixels
+     * is expanded to scaled palette indexes with a lookup table, and rows
+     * are written straight into the raster. Called by the renderer, never blocks.
+     *
+     * @return Redrawn area of the image, <code>null</code> if nothing changed
+     */
+    public Rectangle renderDirty() {
+        if ((exchanged.get() & FRESH) != 0) {
+            renderIndex = exchanged.getAndSet(renderIndex) & INDEX_MASK;
+        }
+        long[] frame = frames[renderIndex];
+
+        int top = height;
+        int bottom = 0;
+        for (int y = 0; y < height; y++) {
+            for (int i = y * rowWords; i < (y + 1) * rowWords; i++) {
+                if (drawAll || frame[i] != drawn[i]) {
+                    top = Math.min(top, y);
+                    bottom = y + 1;
+                    break;
+                }
+            }
+        }
+        drawAll = false;
+        if (top >= bottom) {
+            return null;
+        }
+        System.arraycopy(frame, top * rowWords, drawn, top * rowWords, (bottom - top) * rowWords);
+
+        WritableRaster raster = image.getRaster();
+        int scaledWidth = width * scale;
+        int chunk = 8 * scale;
+        for (int y = top; y < bottom; y++) {
+            for (int b = 0; b < (width + 7) >>> 3; b++) {
+                int bits = (int) (frame[y * rowWords + (b >>> 3)] >>> (56 - ((b & 7) << 3))) & 0xFF;
+                System.arraycopy(scaleTable, bits * chunk, scaledRow, b * chunk, chunk);
+            }
+            for (int i = 0; i < scale; i++) {
+                raster.setDataElements(0, y * scale + i, scaledWidth, 1, scaledRow);
+            }
+        }
+        return new Rectangle(0, top * scale, width * scale, (bottom - top) * scale);
+    }
+
+    /**
+     * Calculates 64-bit FNV-1a hash of the pixels, used to compare screens
+     * of different runs. Every row is hashed as 64 bits, leftmost pixel first.
+     *
+     * @return Hash of the screen content
+     */
+    public long hash() {
+        long hash = 0xCBF29CE484222325L;
+        for (long word : pixels) {
+            for (int i = 56; i >= 0; i -= 8) {
+                hash ^= (word >>> i) & 0xFF;
+                hash *= 0x100000001B3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return Size of the screen state in the snapshot
+     */
+    int getStateSize() {
+        return 4 + pixels.length * 8;
+    }
+
+    /**
+     * Writes pixels to the snapshot, every row as 64-bit words,
+     * leftmost pixel in the most significant bit.
+     *
+     * @param buffer Buffer the snapshot is written to
+     */
+    void saveState(ByteBuffer buffer) {
+        buffer.putShort((short) width);
+        buffer.putShort((short) height);
+        buffer.asLongBuffer().put(pixels);
+        buffer.position(buffer.position() + pixels.length * 8);
+    }
+
+    /**
+     * Restores pixels from the snapshot.
+     *
+     * @param buffer Buffer the snapshot is read from
+     */
+    void loadState(ByteBuffer buffer) {
+        if (buffer.getShort() != width || buffer.getShort() != height) {
+            throw new IllegalArgumentException("Snapshot screen size does not match");
+        }
+        buffer.asLongBuffer().get(pixels);
+        buffer.position(buffer.position() + pixels.length * 8);
+        publish();
+    }
+
     /**
      * Checks if pixel on given coordinates is turned on,
      *
@@ -135,6 +357,13 @@ public class Screen implements IScreen {
      *          <code>false</code> if it is set to off
      */
     public boolean isPixelOn(int x, int y) {
-        return new Color(image.getRGB(x * scale, y * scale), true).equals(colorOn);
+        return isPixelOn(pixels, x, y);
+    }
+
+    /**
+     * Checks if pixel on given coordinates is turned on in given frame.
+     */
+    private boolean isPixelOn(long[] frame, int x, int y) {
+        return (frame[y * rowWords + (x >>> 6)] << (x & 63)) < 0;
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Binary snapshot of the whole machine state.
+ *
+ * The snapshot is a fixed layout of big-endian fields: header (magic, version),
+ * memory, CPU, screen, keyboard and the virtual clock of the engine.
+ * Sections are written straight into one preallocated buffer, so saving
+ * and restoring are plain copies without any intermediate objects.
+ */
+class Snapshot {
+
+    // Identifies the snapshot file
+    private static final int MAGIC = 0x43385354; // "C8ST"
+    // Version of the layout, increased on every incompatible change
+    private static final int VERSION = 1;
+    // Size of the header
+    private static final int HEADER_SIZE = 8;
+    // Size of the virtual clock of the engine
+    static final int CLOCK_SIZE = 8 + 8 + 4;
+
+    /**
+     * Calculates size of the snapshot of given screen.
+     *
+     * @param screen Screen of the machine
+     * @return Size of the snapshot in bytes
+     */
+    static int size(Screen screen) {
+        return HEADER_SIZE + Memory.MEMORY_SIZE + Cpu.STATE_SIZE
+                + screen.getStateSize() + Keyboard.STATE_SIZE + CLOCK_SIZE;
+    }
+
+    /**
+     * Writes the header.
+     *
+     * @param buffer Buffer the snapshot is written to
+     */
+    static void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+    }
+
+    /**
+     * Reads and checks the header.
+     *
+     * @param buffer Buffer the snapshot is read from
+     */
+    static void readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + version);
+        }
+    }
+
+    /**
+     * Writes the snapshot to the disk.
+     *
+     * @param file Destination file
+     * @param data Snapshot data
+     * @throws IOException if the file can not be written
+     */
+    static void write(File file, byte[] data) throws IOException {
+        Files.write(file.toPath(), data);
+    }
+
+    /**
+     * Reads the snapshot from the disk.
+     *
+     * @param file Source file
+     * @return Snapshot data
+     * @throws IOException if the file can not be read
+     */
+    static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+/**
+ * Generates the tone of the beeper as signed 8-bit mono samples.
+ * The phase is kept between calls, so consecutive buffers join without clicks.
+ */
+class SquareWave {
+
+    // Number of samples per second
+    static final int SAMPLE_RATE = 44100;
+    // Frequency of the tone in Hz, middle C
+    private static final int FREQUENCY = 262;
+    // Amplitude of the samples
+    private static final int AMPLITUDE = 24;
+
+    // Position within the period, in units of SAMPLE_RATE / FREQUENCY
+    private int phase;
+
+    /**
+     * Fills the buffer with the tone or with silence.
+     *
+     * @param buffer Buffer for the samples
+     * @param length Number of samples to be written
+     * @param on <code>true</code> for the tone, <code>false</code> for silence
+     */
+    void fill(byte[] buffer, int length, boolean on) {
+        if (!on) {
+            for (int i = 0; i < length; i++) {
+                buffer[i] = 0;
+            }
+            phase = 0;
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) (phase < SAMPLE_RATE / 2 ? AMPLITUDE : -AMPLITUDE);
+            phase += FREQUENCY;
+            if (phase >= SAMPLE_RATE) {
+                phase -= SAMPLE_RATE;
+            }
+        }
+    }
+}
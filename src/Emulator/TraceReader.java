@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import Disassembler.Disassembler;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decodes the execution trace written by <code>TraceWriter</code>.
+ * Reading stops at the first record not written, so traces of runs
+ * that were not closed properly can be read as well.
+ * The file is mapped one region at a time, the same way it was written,
+ * so traces of any length can be read.
+ */
+public class TraceReader implements Closeable {
+
+    // Trace file
+    private RandomAccessFile file;
+    // Channel of the trace file
+    private FileChannel channel;
+    // Length of the trace file
+    private long length;
+    // Currently mapped region, null if none
+    private MappedByteBuffer region;
+    // Offset of the current region in the file
+    private long regionOffset;
+    // Number of records in the file
+    private long count;
+
+    /**
+     * Opens the trace file and checks its header.
+     *
+     * @param filePath Location of the trace file
+     * @throws IOException if the file can not be read
+     */
+    public TraceReader(String filePath) throws IOException {
+        file = new RandomAccessFile(filePath, "r");
+        try {
+            channel = file.getChannel();
+            length = file.length();
+            if (length < TraceWriter.HEADER_SIZE) {
+                throw new IllegalArgumentException("Not a trace " + filePath);
+            }
+            map(0);
+            if (region.getInt(0) != TraceWriter.MAGIC) {
+                throw new IllegalArgumentException("Not a trace " + filePath);
+            }
+            int version = region.getInt(4);
+            if (version != TraceWriter.VERSION || region.getInt(8) != TraceWriter.RECORD_SIZE) {
+                throw new IllegalArgumentException("Unsupported trace version " + version);
+            }
+            long records = (length - TraceWriter.HEADER_SIZE) / TraceWriter.RECORD_SIZE;
+            count = 0;
+            while (count < records) {
+                int offset = locate(count);
+                if ((region.getShort(offset + 8) & TraceWriter.VALID) == 0) {
+                    break;
+                }
+                count++;
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps the region starting at given offset.
+     */
+    private void map(long offset) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(TraceWriter.REGION_SIZE, length - offset));
+        regionOffset = offset;
+    }
+
+    /**
+     * Maps the region holding the record, records never cross regions.
+     *
+     * @return Position of the record in the current region
+     */
+    private int locate(long record) throws IOException {
+        long offset = TraceWriter.HEADER_SIZE + record * TraceWriter.RECORD_SIZE;
+        long start = offset - offset % TraceWriter.REGION_SIZE;
+        if (start != regionOffset) {
+            map(start);
+        }
+        return (int) (offset - start);
+    }
+
+    /**
+     * @return Number of records in the trace
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Formats the record in form of cycle, address, opcode, mnemonic,
+     * value of I and the changed register.
+     *
+     * @param record Index of the record
+     * @return Decoded record
+     * @throws IOException if the record can not be read
+     */
+    public String format(long record) throws IOException {
+        int offset = locate(record);
+        long cycle = region.getLong(offset);
+        int pc = region.getShort(offset + 8) & 0xFFF;
+        int opcode = region.getShort(offset + 10) & 0xFFFF;
+        int regI = region.getShort(offset + 12) & 0xFFFF;
+        int reg = region.get(offset + 14) & 0xFF;
+        int value = region.get(offset + 15) & 0xFF;
+        String line = String.format("%10d 0x%03X: %04X  %-16s I=0x%03X", cycle, pc, opcode,
+                Disassembler.decode(opcode), regI);
+        if (reg != TraceWriter.NO_REGISTER) {
+            line += String.format(" V%X=0x%02X", reg, value);
+        }
+        return line;
+    }
+
+    /**
+     * Writes all records decoded, one per line.
+     *
+     * @param outFile Destination file, <code>null</code> for standard output
+     * @throws IOException if the output can not be written
+     */
+    public void dump(String outFile) throws IOException {
+        Writer writer = outFile != null ? new FileWriter(outFile) : new OutputStreamWriter(System.out);
+        BufferedWriter out = new BufferedWriter(writer);
+        for (long i = 0; i < count; i++) {
+            out.write(format(i));
+            out.newLine();
+        }
+        out.flush();
+        if (outFile != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * Closes the trace file.
+     *
+     * @throws IOException if the file can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        region = null;
+        file.close();
+    }
+}
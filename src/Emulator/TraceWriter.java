@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the full execution trace to a memory-mapped file.
+ *
+ * The file starts with a header (magic, version, record size, padding), followed by
+ * one fixed-width record per executed instruction: cycle number (long),
+ * program counter with the highest bit set as valid mark (short), opcode (short),
+ * I after the instruction (short), changed register (byte, 0xFF for none) and
+ * its new value (byte). The file is mapped in large regions, so recording
+ * is a few stores into memory and the OS writes the pages out on its own,
+ * even if the process dies without closing the trace.
+ */
+public class TraceWriter {
+
+    // Identifies the trace file
+    static final int MAGIC = 0x43385452; // "C8TR"
+    // Version of the format
+    static final int VERSION = 1;
+    // Size of one record
+    static final int RECORD_SIZE = 16;
+    // Size of the header, padded to one record so records never cross mapped regions
+    static final int HEADER_SIZE = RECORD_SIZE;
+    // Mark of a written record, set in the program counter field
+    static final int VALID = 0x8000;
+    // Register field of an instruction changing no register
+    static final int NO_REGISTER = 0xFF;
+
+    // Number of records in one mapped region
+    private static final int REGION_RECORDS = 1 << 20;
+    // Size of one mapped region, also used by the reader
+    static final long REGION_SIZE = (long) REGION_RECORDS * RECORD_SIZE;
+
+    // Trace file
+    private RandomAccessFile file;
+    // Channel of the trace file
+    private FileChannel channel;
+    // Currently mapped region
+    private MappedByteBuffer region;
+    // Offset of the current region in the file
+    private long regionOffset;
+    // Position of the next record in the current region
+    private int position;
+    // Cycle number of the next record
+    private long cycle;
+
+    /**
+     * Creates the trace file, replacing the existing one.
+     *
+     * @param filePath Location of the trace file
+     * @param cycle Cycle number of the first record
+     * @throws IOException if the file can not be created
+     */
+    public TraceWriter(String filePath, long cycle) throws IOException {
+        this.file = new RandomAccessFile(filePath, "rw");
+        this.channel = file.getChannel();
+        this.cycle = cycle;
+        channel.truncate(0);
+        map(0);
+        region.putInt(MAGIC);
+        region.putInt(VERSION);
+        region.putInt(RECORD_SIZE);
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Maps the region starting at given offset.
+     */
+    private void map(long offset) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, offset, REGION_SIZE);
+        regionOffset = offset;
+        position = 0;
+    }
+
+    /**
+     * Returns the register changed by the instruction, the one
+     * that is most useful to see in the trace when more of them change.
+     *
+     * @param opcode Operation code of the instruction
+     * @return Index of the register, <code>NO_REGISTER</code> if none
+     */
+    static int getChangedRegister(int opcode) {
+        int x = (opcode >>> 8) & 0xF;
+        switch (opcode >>> 12) {
+            case 0x6:
+            case 0x7:
+            case 0x8:
+            case 0xC:
+                return x;
+            case 0xD:
+                return 0xF;
+            case 0xF:
+                switch (opcode & 0xFF) {
+                    case 0x07:
+                    case 0x0A:
+                    case 0x65:
+                        return x;
+                    default:
+                        return NO_REGISTER;
+                }
+            default:
+                return NO_REGISTER;
+        }
+    }
+
+    /**
+     * Appends the record of the executed instruction.
+     *
+     * @param pc Address of the instruction
+     * @param opcode Operation code of the instruction
+     * @param cpu CPU right after the instruction
+     */
+    void record(int pc, int opcode, Cpu cpu) {
+        if (position == REGION_SIZE) {
+            try {
+                map(regionOffset + REGION_SIZE);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to extend the trace file", e);
+            }
+        }
+        int reg = getChangedRegister(opcode);
+        MappedByteBuffer region = this.region;
+        int position = this.position;
+        region.putLong(position, cycle++);
+        region.putShort(position + 8, (short) (pc | VALID));
+        region.putShort(position + 10, (short) opcode);
+        region.putShort(position + 12, (short) cpu.getIndexRegister());
+        region.put(position + 14, (byte) reg);
+        region.put(position + 15, reg == NO_REGISTER ? 0 : (byte) cpu.getRegister(reg));
+        this.position = position + RECORD_SIZE;
+    }
+
+    /**
+     * Sets the cycle number of the next record, after the machine state was restored.
+     *
+     * @param cycle Cycle number of the next record
+     */
+    void setCycle(long cycle) {
+        this.cycle = cycle;
+    }
+
+    /**
+     * Cuts the file to the written records and closes it.
+     *
+     * @throws IOException if the file can not be written
+     */
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        region.force();
+        region = null;
+        channel.truncate(regionOffset + position);
+        file.close();
+        file = null;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import Disassembler.Disassembler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records last executed instructions into a ring buffer.
+ * Instructions are kept as raw program counter and opcode pairs
+ * and are converted to mnemonics only when the trace is read.
+ */
+public class Tracer {
+
+    // Default number of instructions kept in the buffer
+    public static final int DEFAULT_CAPACITY = 256;
+
+    // Recorded instructions, program counter in upper and opcode in lower half
+    private final int[] entries;
+    // Mask used to wrap the position in the buffer
+    private final int mask;
+    // Number of instructions recorded since last clear
+    private long count;
+
+    /**
+     * Default constructor for the class.
+     *
+     * @param capacity Number of instructions to be kept, rounded up to the power of two
+     */
+    public Tracer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid trace capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        entries = new int[size];
+        mask = size - 1;
+        count = 0;
+    }
+
+    /**
+     * Records executed instruction.
+     *
+     * @param pc Address of the instruction
+     * @param opcode Operation code of the instruction
+     */
+    public void record(int pc, int opcode) {
+        entries[(int) count & mask] = (pc << 16) | (opcode & 0xFFFF);
+        count++;
+    }
+
+    /**
+     * @return Number of instructions currently held in the buffer
+     */
+    public int size() {
+        return (int) Math.min(count, entries.length);
+    }
+
+    /**
+     * Clears recorded instructions.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Formats recorded instructions, oldest first.
+     *
+     * @return List of recorded instructions in form of address, opcode and mnemonic
+     */
+    public List<String> getTrace() {
+        int size = size();
+        List<String> trace = new ArrayList<>(size);
+        for (long i = count - size; i < count; i++) {
+            int entry = entries[(int) i & mask];
+            int pc = entry >>> 16;
+            int opcode = entry & 0xFFFF;
+            trace.add(String.format("0x%03X: %04X  %s", pc, opcode, Disassembler.decode(opcode)));
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Renders the beeper to a WAV file, without any sound device.
+ * Every frame is rendered as exactly 1/60 s of samples, so the output
+ * depends only on the emulated program, not on the speed of the host.
+ * Samples are streamed to the file as they are rendered and the sizes
+ * in the header are patched when the file is closed.
+ */
+public class WavWriter implements IAudioSink {
+
+    // Number of samples per frame
+    private static final int FRAME_SAMPLES = SquareWave.SAMPLE_RATE / Engine.FRAME_RATE;
+    // Size of the header before the samples
+    private static final int HEADER_SIZE = 44;
+    // Offset of the size of the RIFF chunk
+    private static final int RIFF_SIZE_OFFSET = 4;
+    // Offset of the size of the data chunk
+    private static final int DATA_SIZE_OFFSET = 40;
+    // Largest number of samples the sizes in the header can hold
+    private static final long MAX_SAMPLES = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+
+    // Location of the WAV file
+    private String filePath;
+    // Stream of the samples, opened by the first frame
+    private OutputStream out;
+    // First error writing the samples, reported by close
+    private IOException error;
+    // Number of written samples
+    private long written;
+    // Generator of the tone
+    private SquareWave wave = new SquareWave();
+    // Samples of one frame
+    private byte[] frame = new byte[FRAME_SAMPLES];
+
+    /**
+     * Default constructor for the class.
+     *
+     * @param filePath Location of the WAV file
+     */
+    public WavWriter(String filePath) {
+        this.filePath = filePath;
+    }
+
+    @Override
+    public void frame(boolean on) {
+        if (error != null) {
+            return;
+        }
+        wave.fill(frame, frame.length, on);
+        // 8-bit WAV samples are unsigned
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] ^= 0x80;
+        }
+        try {
+            open();
+            out.write(frame, 0, frame.length);
+            written += frame.length;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Flushes the samples and patches the sizes in the header.
+     *
+     * @throws IOException if the file can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        open();
+        out.close();
+        if (written > MAX_SAMPLES) {
+            throw new IOException("Audio too long for a WAV file");
+        }
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
+            file.seek(RIFF_SIZE_OFFSET);
+            file.write(littleEndian(HEADER_SIZE - 8 + written));
+            file.seek(DATA_SIZE_OFFSET);
+            file.write(littleEndian(written));
+        }
+    }
+
+    /**
+     * Creates the file and writes the header with empty sizes, if not done yet.
+     */
+    private void open() throws IOException {
+        if (out != null) {
+            return;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        put(header, 0, "RIFF");
+        put(header, 8, "WAVEfmt ");
+        header[16] = 16;                                                // Size of the format chunk
+        header[20] = 1;                                                 // PCM
+        header[22] = 1;                                                 // Mono
+        System.arraycopy(littleEndian(SquareWave.SAMPLE_RATE), 0, header, 24, 4);
+        System.arraycopy(littleEndian(SquareWave.SAMPLE_RATE), 0, header, 28, 4);
+        header[32] = 1;                                                 // Bytes per sample
+        header[34] = 8;                                                 // Bits per sample
+        put(header, 36, "data");
+        out = new BufferedOutputStream(new FileOutputStream(filePath));
+        out.write(header);
+    }
+
+    /**
+     * Copies the chunk identifier into the header.
+     */
+    private static void put(byte[] header, int offset, String id) {
+        for (int i = 0; i < id.length(); i++) {
+            header[offset + i] = (byte) id.charAt(i);
+        }
+    }
+
+    /**
+     * Encodes the lowest 32 bits as little-endian.
+     */
+    private static byte[] littleEndian(long value) {
+        return new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+    }
+}
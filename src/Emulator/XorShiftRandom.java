@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Mario Perić
+ *
+ * See LICENSE for more info
+*/
+package Emulator;
+
+/**
+ * Seedable xorshift64* random number generator.
+ * Not thread safe, every emulated CPU should have its own instance.
+ */
+public class XorShiftRandom implements IRandom {
+
+    // Multiplier of the xorshift64* output
+    private static final long MULTIPLIER = 0x2545F4914F6CDD1DL;
+    // Increment used to spread the seed over the state
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    // State of the generator, never zero
+    private long state;
+
+    /**
+     * Default constructor for the class.
+     *
+     * @param seed Seed of the generator, same seed gives same sequence
+     */
+    public XorShiftRandom(long seed) {
+        setSeed(seed);
+    }
+
+    /**
+     * Restarts the generator with given seed.
+     *
+     * @param seed Seed of the generator
+     */
+    public void setSeed(long seed) {
+        // SplitMix64 finalizer, so similar seeds give unrelated sequences
+        long z = seed + GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        state = z == 0 ? GOLDEN_GAMMA : z;
+    }
+
+    /**
+     * @return Random value from 0 to 0xFF, inclusive
+     */
+    public int nextByte() {
+        long x = state;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        state = x;
+        return (int) ((x * MULTIPLIER) >>> 56);
+    }
+
+    /**
+     * @return Current state of the generator
+     */
+    long getState() {
+        return state;
+    }
+
+    /**
+     * Restores the state of the generator.
+     *
+     * @param state State returned by <code>getState</code>
+     */
+    void setState(long state) {
+        this.state = state == 0 ? GOLDEN_GAMMA : state;
+    }
+}
@@ -6,7 +6,17 @@
 
 import Assembler.Assembler;
 import Disassembler.Disassembler;
+import Emulator.BatchRunner;
+import Emulator.Benchmark;
+import Emulator.DebugServer;
+import Emulator.DispatchMode;
 import Emulator.Emulator;
+import Emulator.Engine;
+import Emulator.Metrics;
+import Emulator.TraceReader;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Main class for program execution.
@@ -15,20 +25,84 @@ import Emulator.Emulator;
  */
 public class Main {
 
+    // Number of frames run in headless mode if not specified
+    private static final int DEFAULT_HEADLESS_FRAMES = 600;
+
     /**
      * Prints the help.
      */
     private static void printHelp() {
         System.out.println("usage: [-h display help] [-s scale factor]" +
-                "\n      [-d CPU time delay between commands] [-t theme] ROM\n");
+                "\n      [-d CPU time delay between commands] [-c commands per frame]" +
+                "\n      [--turbo run unthrottled] [--seed random seed] [-t theme]" +
+                "\n      [-l number of instructions to print on crash]" +
+                "\n      [-m dispatch mode] [--headless run without window] [-f headless frames]" +
+                "\n      [--load-state snapshot] [--save-state snapshot saved after headless run]" +
+                "\n      [--record input movie] [--replay input movie] [--wav render sound to file]" +
+                "\n      [--debug remote debug port] [--debug-wait port, start paused until a client resumes]" +
+                "\n      [--trace execution trace file]" +
+                "\n      [--profile collapsed stacks file] [--metrics expose metrics over JMX] ROM\n");
         System.out.println("THEMES:\n" +
                 "0: BLACK-WHITE\n" +
                 "1: POWERSHELL\n" +
                 "2: RADAR\n" +
                 "3: INVERTED\n");
+        System.out.println("DISPATCH MODES:\n" +
+                "switch\n" +
+                "predecoded\n" +
+                "block_cache\n" +
+                "recompiler\n");
         System.out.println();
         System.out.println("Assembler usage: --asm [-o output file name] input\n");
         System.out.println("Disassembler usage: --dasm [-o output file name] ROM\n");
+        System.out.println("Trace reader usage: --read-trace [-o output file name] trace file\n");
+        System.out.println("Batch usage: --batch [-c commands per frame] [-m dispatch mode] [--seed random seed]" +
+                "\n      [--debug remote debug port of the first job, next jobs use next ports]" +
+                "\n      [--debug-wait port, every job starts paused until a client resumes it]" +
+                "\n      [--metrics print metrics of all jobs] jobs file" +
+                "\n      jobs file lines: ROM frames [input script]" +
+                "\n      input script lines: frame down|up key\n");
+        System.out.println("Benchmark usage: --bench [-n number of instructions] [-m dispatch mode]" +
+                "\n      [-v compare dispatch modes with switch] [--seed random seed] [ROM]\n");
+    }
+
+    /**
+     * Parses the port of the remote debug server.
+     */
+    private static int parsePort(String arg, String value) {
+        int port = Integer.parseInt(value);
+        if (port <= 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid argument " + arg + value);
+        }
+        return port;
+    }
+
+    /**
+     * Starts the remote debug server of the engine.
+     *
+     * @param engine Engine to be debugged
+     * @param port Loopback port, 0 for no server
+     * @param wait <code>true</code> if the engine is paused until a client resumes it
+     * @return Started server, null if none
+     */
+    private static DebugServer startDebugServer(Engine engine, int port, boolean wait) {
+        if (port == 0) {
+            return null;
+        }
+        try {
+            DebugServer server = new DebugServer(engine, port);
+            if (wait) {
+                engine.setPaused(true);
+            }
+            server.start();
+            System.out.println("Debug server listening on port " + server.getPort()
+                    + (wait ? ", waiting for a client to resume" : ""));
+            return server;
+        } catch (IOException e) {
+            System.out.println("ERROR: Unable to open debug port!");
+            System.exit(2);
+            return null;
+        }
     }
 
     public static void main(String[] args) {
@@ -88,14 +162,202 @@ public class Main {
 
             return;
 
+        } else if (args[0].equals("--read-trace")) {
+            int i = 1;
+            while (i < args.length) {
+                if (args[i].equals("-o") || args[i].equals("/o")) {
+                    outFile = args[++i];
+                } else if (args[i].equals("-h")) {
+                    printHelp();
+                } else {
+                    if (inFile == null) {
+                        inFile = args[i];
+                    }
+                }
+                i++;
+            }
+
+            if (inFile == null) {
+                System.out.println("Trace file not specified!");
+                return;
+            }
+
+            try (TraceReader reader = new TraceReader(inFile)) {
+                reader.dump(outFile);
+            } catch (IOException e) {
+                System.out.println("ERROR: Unable to read trace!");
+                System.exit(2);
+            }
+
+            return;
+
+        } else if (args[0].equals("--batch")) {
+            int cyclesPerFrame = 0;
+            DispatchMode mode = DispatchMode.SWITCH;
+            long seed = 0;
+            int debugPort = 0;
+            boolean debugWait = false;
+            boolean metrics = false;
+            int i = 1;
+            while (i < args.length) {
+                if (args[i].equals("-c") || args[i].equals("/c")) {
+                    cyclesPerFrame = Integer.parseInt(args[++i]);
+                    if (cyclesPerFrame <= 0) {
+                        throw new IllegalArgumentException("Invalid argument " + args[i - 1] + args[i]);
+                    }
+                } else if (args[i].equals("-m") || args[i].equals("/m")) {
+                    mode = DispatchMode.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--seed")) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--debug") || args[i].equals("--debug-wait")) {
+                    debugWait = args[i].equals("--debug-wait");
+                    debugPort = parsePort(args[i], args[++i]);
+                } else if (args[i].equals("--metrics")) {
+                    metrics = true;
+                } else if (args[i].equals("-h")) {
+                    printHelp();
+                } else {
+                    if (inFile == null) {
+                        inFile = args[i];
+                    }
+                }
+                i++;
+            }
+
+            if (inFile == null) {
+                System.out.println("Jobs file not specified!");
+                return;
+            }
+
+            BatchRunner runner;
+            try {
+                runner = new BatchRunner(inFile);
+            } catch (IOException e) {
+                System.out.println("ERROR: Unable to open file!");
+                System.exit(2);
+                return;
+            }
+            runner.setCyclesPerFrame(cyclesPerFrame);
+            runner.setDispatchMode(mode);
+            runner.setSeed(seed);
+            runner.setDebugPort(debugPort);
+            runner.setDebugWait(debugWait);
+            runner.setMetrics(metrics);
+            if (!runner.run()) {
+                System.exit(1);
+            }
+
+            return;
+
+        } else if (args[0].equals("--bench")) {
+            long instructions = Benchmark.DEFAULT_INSTRUCTIONS;
+            DispatchMode mode = null;
+            boolean verify = false;
+            long seed = 0;
+            int i = 1;
+            while (i < args.length) {
+                if (args[i].equals("-n") || args[i].equals("/n")) {
+                    instructions = Long.parseLong(args[++i]);
+                    if (instructions <= 0) {
+                        throw new IllegalArgumentException("Invalid argument " + args[i - 1] + args[i]);
+                    }
+                } else if (args[i].equals("-m") || args[i].equals("/m")) {
+                    mode = DispatchMode.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("-v") || args[i].equals("/v")) {
+                    verify = true;
+                } else if (args[i].equals("--seed")) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-h")) {
+                    printHelp();
+                } else {
+                    if (inFile == null) {
+                        inFile = args[i];
+                    }
+                }
+                i++;
+            }
+
+            Benchmark benchmark = new Benchmark(inFile, instructions);
+            benchmark.setDispatchMode(mode);
+            benchmark.setSeed(seed);
+            if (verify) {
+                if (!benchmark.verify()) {
+                    System.exit(1);
+                }
+            } else {
+                benchmark.run();
+            }
+
+            return;
+
         } else {
 
             Emulator.Builder builder = new Emulator.Builder();
+            boolean headless = false;
+            int frames = 0;
+            String saveState = null;
+            boolean record = false;
+            int debugPort = 0;
+            boolean debugWait = false;
+            boolean metrics = false;
 
             int i = 0;
             while (i < args.length) {
                 if (args[i].equals("-h")) {
                     printHelp();
+                    // Cycles per frame
+                } else if (args[i].equals("-c") || args[i].equals("/c")) {
+                    int cycles = Integer.parseInt(args[++i]);
+                    if (cycles > 0) {
+                        builder.setCyclesPerFrame(cycles);
+                    } else {
+                        throw new IllegalArgumentException("Invalid argument " + args[i - 1] + args[i]);
+                    }
+                    // Random seed
+                } else if (args[i].equals("--seed")) {
+                    builder.setSeed(Long.parseLong(args[++i]));
+                    // Unthrottled mode
+                } else if (args[i].equals("--turbo")) {
+                    builder.setTurbo(true);
+                    // Headless run
+                } else if (args[i].equals("--headless")) {
+                    headless = true;
+                    // Number of headless frames
+                } else if (args[i].equals("-f") || args[i].equals("/f")) {
+                    frames = Integer.parseInt(args[++i]);
+                    if (frames <= 0) {
+                        throw new IllegalArgumentException("Invalid argument " + args[i - 1] + args[i]);
+                    }
+                    // Snapshot to be restored
+                } else if (args[i].equals("--load-state")) {
+                    builder.setStateFile(args[++i]);
+                    // Snapshot to be saved
+                } else if (args[i].equals("--save-state")) {
+                    saveState = args[++i];
+                    // Input movie to be recorded
+                } else if (args[i].equals("--record")) {
+                    builder.setRecordFile(args[++i]);
+                    record = true;
+                    // Input movie to be replayed
+                } else if (args[i].equals("--replay")) {
+                    builder.setReplayFile(args[++i]);
+                    // Sound rendered to file
+                } else if (args[i].equals("--wav")) {
+                    builder.setAudioFile(args[++i]);
+                    // Remote debug port
+                } else if (args[i].equals("--debug") || args[i].equals("--debug-wait")) {
+                    debugWait = args[i].equals("--debug-wait");
+                    debugPort = parsePort(args[i], args[++i]);
+                    // Execution trace
+                } else if (args[i].equals("--trace")) {
+                    builder.setTraceFile(args[++i]);
+                    // Profile
+                } else if (args[i].equals("--profile")) {
+                    builder.setProfileFile(args[++i]);
+                    // Metrics
+                } else if (args[i].equals("--metrics")) {
+                    builder.setMetrics(true);
+                    metrics = true;
                     // Time delay
                 } else if (args[i].equals("-d") || args[i].equals("/d")) {
                     int delay = Integer.parseInt(args[++i]);
@@ -108,6 +370,17 @@ public class Main {
                 } else if (args[i].equals("-t") || args[i].equals("/t")) {
                     int type = Integer.parseInt(args[++i]);
                     builder.setScreenType(type);
+                    // Instruction log
+                } else if (args[i].equals("-l") || args[i].equals("/l")) {
+                    int capacity = Integer.parseInt(args[++i]);
+                    if (capacity > 0) {
+                        builder.setTraceCapacity(capacity);
+                    } else {
+                        throw new IllegalArgumentException("Invalid argument " + args[i - 1] + args[i]);
+                    }
+                    // Dispatch mode
+                } else if (args[i].equals("-m") || args[i].equals("/m")) {
+                    builder.setDispatchMode(DispatchMode.valueOf(args[++i].toUpperCase()));
                     // Scale factor
                 } else if (args[i].equals("-s") || args[i].equals("/s")) {
                     int scale = Integer.parseInt(args[++i]);
@@ -129,8 +402,60 @@ public class Main {
                 i++;
             }
 
-            if (romSet) {
+            if (romSet && headless) {
+                Engine engine = builder.buildEngine();
+                if (frames == 0) {
+                    frames = engine.getReplayLength() > 0 ? (int) engine.getReplayLength() : DEFAULT_HEADLESS_FRAMES;
+                }
+                DebugServer server = startDebugServer(engine, debugPort, debugWait);
+                engine.runFrames(frames);
+                System.out.println(String.format("Frames: %d Cycles: %d PC: 0x%03X I: 0x%03X Screen: %016x",
+                        engine.getFrames(), engine.getCycles(), engine.getCpu().getProgramCounter(),
+                        engine.getCpu().getIndexRegister(), engine.getScreen().hash()));
+                if (server != null) {
+                    server.awaitClients();
+                    server.close();
+                }
+                if (record) {
+                    try {
+                        engine.saveRecording();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Unable to save input movie!");
+                        System.exit(2);
+                    }
+                }
+                try {
+                    engine.closeAudio();
+                } catch (IOException e) {
+                    System.out.println("ERROR: Unable to save audio!");
+                    System.exit(2);
+                }
+                try {
+                    engine.closeTrace();
+                } catch (IOException e) {
+                    System.out.println("ERROR: Unable to save trace!");
+                    System.exit(2);
+                }
+                try {
+                    engine.saveProfile();
+                } catch (IOException e) {
+                    System.out.println("ERROR: Unable to save profile!");
+                    System.exit(2);
+                }
+                if (metrics) {
+                    Metrics.getInstance().printReport();
+                }
+                if (saveState != null) {
+                    try {
+                        engine.saveState(new File(saveState));
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Unable to save state!");
+                        System.exit(2);
+                    }
+                }
+            } else if (romSet) {
                 Emulator emulator = builder.build();
+                startDebugServer(emulator.getEngine(), debugPort, debugWait);
                 emulator.start();
             } else {
                 System.out.println("ROM not specified!");